@@ -24,15 +24,17 @@ import android.media.AudioTrack;
 import android.os.Process;
 import android.util.Log;
 import org.jsl.collider.RetainableByteBuffer;
-import org.jsl.collider.Session;
+import org.jsl.collider.RetainableByteBufferCache;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.logging.Logger;
 
 public abstract class AudioPlayer
 {
     private static final String LOG_TAG = AudioPlayer.class.getSimpleName();
+    private static final Logger s_logger = Logger.getLogger("org.jsl.wfwt.AudioPlayer");
 
     private static final AtomicReferenceFieldUpdater<Node, Node> s_nodeNextUpdater
             = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
@@ -46,28 +48,118 @@ public abstract class AudioPlayer
     {
         public volatile Node next;
         final NodeCommand cmd;
-        final RetainableByteBuffer audioFrame;
+        final int rateShift;
+        RetainableByteBuffer audioFrame; /* replaced by the player only */
+        final long captureTime; /* ClockSync time, 0 if not known */
+        final boolean flush; /* frames queued before are dropped */
+        boolean copied; /* audio frame is in the arena */
 
-        Node(NodeCommand cmd, RetainableByteBuffer audioFrame)
+        Node(NodeCommand cmd, int rateShift, RetainableByteBuffer audioFrame, long captureTime, boolean flush)
         {
             this.cmd = cmd;
+            this.rateShift = rateShift;
             this.audioFrame = audioFrame;
+            this.captureTime = captureTime;
+            this.flush = flush;
+        }
+    }
+
+    private static class Arena
+    {
+        /* Compact copies of the queued audio frames.
+         * Received frame is a slice of the Collider input block,
+         * while it is in the queue the whole block is kept,
+         * frames are copied one after another to the arena block
+         * which is returned to the cache when all of them are played.
+         * Block fits Config.PLAYER_COMPACT_THRESHOLD full size frames.
+         * Used by the player thread only.
+         */
+        private final int m_blockSize;
+        private final RetainableByteBufferCache m_cache;
+        private RetainableByteBuffer m_block;
+
+        Arena(int frameSize)
+        {
+            m_blockSize = (Config.PLAYER_COMPACT_THRESHOLD * frameSize);
+            m_cache = new RetainableByteBufferCache(true, m_blockSize, Protocol.BYTE_ORDER, 4);
+        }
+
+        RetainableByteBuffer copy(RetainableByteBuffer audioFrame)
+        {
+            final int size = audioFrame.remaining();
+            if (size > m_blockSize)
+                return null;
+
+            if (m_block == null)
+                m_block = m_cache.get();
+            else if ((m_block.capacity() - m_block.position()) < size)
+            {
+                m_block.release();
+                m_block = m_cache.get();
+            }
+
+            if (BuildConfig.DEBUG && (m_block.limit() != m_block.capacity()))
+                throw new AssertionError();
+
+            final int position = m_block.position();
+            m_block.put(audioFrame.getNioByteBuffer().duplicate());
+            final int limit = m_block.position();
+            m_block.position(position);
+            m_block.limit(limit);
+            final RetainableByteBuffer ret = m_block.slice();
+            m_block.limit(m_block.capacity());
+            m_block.position(limit);
+            return ret;
+        }
+
+        void release()
+        {
+            if (m_block != null)
+            {
+                m_block.release();
+                m_block = null;
+            }
+            m_cache.clear(s_logger);
         }
     }
 
     private static abstract class Impl extends AudioPlayer implements Runnable
     {
         final String m_logPrefix;
+        final String m_audioFormat;
         final Thread m_thread;
         final Semaphore m_sema;
         Node m_head;
         public volatile Node m_tail;
 
-        Impl(String logPrefix)
+        /* Number of flush nodes enqueued, incremented by the session
+         * thread only (there is one producer at a time) before the node
+         * is enqueued, and the number of flush nodes played.
+         * Flush node can be still not linked to the queue
+         * when the player sees the counters differ.
+         */
+        volatile int m_flushRequests;
+        int m_flushes;
+        private boolean m_flushPending;
+
+        /* Number of frames enqueued by the session thread
+         * and the number of frames released by the player,
+         * when the queue is too long the player copies queued frames
+         * to the arena (including ones queued before), so they do not
+         * keep Collider input blocks.
+         */
+        volatile int m_enqueued;
+        int m_dequeued;
+        final Arena m_arena;
+        int m_framesCopied;
+
+        Impl(String logPrefix, String audioFormat, int frameSize)
         {
             m_logPrefix = logPrefix;
+            m_audioFormat = audioFormat;
             m_thread = new Thread(this, LOG_TAG);
             m_sema = new Semaphore(0);
+            m_arena = new Arena(frameSize);
         }
 
         private void enqueue(Node node)
@@ -93,23 +185,43 @@ public abstract class AudioPlayer
             }
         }
 
-        public void play(boolean batchStart, RetainableByteBuffer audioFrame)
+        public void play(boolean batchStart, int rateShift, RetainableByteBuffer audioFrame, long captureTime)
         {
             final NodeCommand cmd = (batchStart ? NodeCommand.BATCH_START : NodeCommand.NONE);
-            final Node node = new Node(cmd, audioFrame);
             audioFrame.retain();
+            LeakTracker.track(this, audioFrame);
+
+            final boolean flush = m_flushPending;
+            if (flush)
+            {
+                m_flushPending = false;
+                m_flushRequests++;
+            }
+
+            final Node node = new Node(cmd, rateShift, audioFrame, captureTime, flush);
             enqueue(node);
+            m_enqueued++;
+        }
+
+        public void flush()
+        {
+            m_flushPending = true;
+        }
+
+        public String getAudioFormat()
+        {
+            return m_audioFormat;
         }
 
         public void batchEnd()
         {
-            final Node node = new Node(NodeCommand.BATCH_END, null);
+            final Node node = new Node(NodeCommand.BATCH_END, 0, null, 0, false);
             enqueue(node);
         }
 
         public void stopAndWait()
         {
-            final Node node = new Node(NodeCommand.STOP, null);
+            final Node node = new Node(NodeCommand.STOP, 0, null, 0, false);
             enqueue(node);
 
             boolean interrupted = false;
@@ -133,12 +245,13 @@ public abstract class AudioPlayer
         private final AudioTrack m_audioTrack;
         private final Channel m_channel;
         private final String m_serviceName;
-        private final Session m_session;
+        private volatile Connection m_session;
         private final int m_bufferSize;
 
-        PcmImpl(String logPrefix, AudioTrack audioTrack, Channel channel, String serviceName, Session session, int bufferSize)
+        PcmImpl(String logPrefix, String audioFormat, AudioTrack audioTrack,
+                Channel channel, String serviceName, Connection session, int bufferSize)
         {
-            super(logPrefix);
+            super(logPrefix, audioFormat, AudioRecorder.getFrameSize(audioTrack.getSampleRate()));
             m_audioTrack = audioTrack;
             m_channel = channel;
             m_serviceName = serviceName;
@@ -147,11 +260,113 @@ public abstract class AudioPlayer
             m_thread.start();
         }
 
+        public void setSession(Connection session)
+        {
+            /* Player is reused by the resumed session */
+            m_session = session;
+        }
+
+        private static int expand(ByteBuffer byteBuffer, int rate, byte [] buf)
+        {
+            /* Repeat each 16 bit sample 'rate' times */
+            final byte [] array = byteBuffer.array();
+            final int offset = byteBuffer.arrayOffset();
+            final int size = byteBuffer.remaining();
+            int idx = 0;
+            for (int pos=0; pos<size; pos+=2)
+            {
+                final byte b1 = array[offset+pos];
+                final byte b2 = array[offset+pos+1];
+                for (int cc=rate; cc>0; cc--)
+                {
+                    buf[idx++] = b1;
+                    buf[idx++] = b2;
+                }
+            }
+            return idx;
+        }
+
+        private void compact(Node node)
+        {
+            /* Copy frames queued after the current one to the arena
+             * if the player is behind, nodes are not touched
+             * by the session thread after being enqueued.
+             */
+            if ((m_enqueued - m_dequeued) < Config.PLAYER_COMPACT_THRESHOLD)
+                return;
+
+            for (Node next=node.next; next!=null; next=next.next)
+            {
+                if ((next.audioFrame != null) && !next.copied)
+                {
+                    final RetainableByteBuffer audioFrame = m_arena.copy(next.audioFrame);
+                    if (audioFrame == null)
+                        continue;
+                    LeakTracker.untrack(this, next.audioFrame);
+                    next.audioFrame.release();
+                    LeakTracker.track(this, audioFrame);
+                    next.audioFrame = audioFrame;
+                    next.copied = true;
+                    m_framesCopied++;
+                }
+            }
+        }
+
+        private Node skipToFlush(Node node)
+        {
+            /* Drop everything queued before the flush node if the node
+             * is already linked to the queue, returns the flush node,
+             * or the same node if the flush node is not there yet
+             * (will try again with the next frame).
+             */
+            Node flushNode = node;
+            while (!flushNode.flush)
+            {
+                if (flushNode.cmd == NodeCommand.STOP)
+                    return node;
+                flushNode = flushNode.next;
+                if (flushNode == null)
+                    return node;
+            }
+
+            int dropped = 0;
+            while (node != flushNode)
+            {
+                if (node.audioFrame != null)
+                {
+                    LeakTracker.untrack(this, node.audioFrame);
+                    node.audioFrame.release();
+                    m_dequeued++;
+                    dropped++;
+                }
+                /* Linked already, flush node is after this one */
+                final Node next = node.next;
+                s_nodeNextUpdater.lazySet(node, null);
+                node = next;
+            }
+
+            if (dropped > 0)
+            {
+                /* Drop the audio track buffer as well */
+                m_audioTrack.pause();
+                m_audioTrack.flush();
+                m_audioTrack.play();
+                Log.i(LOG_TAG, m_logPrefix + "priority transmission, dropped " + dropped + " frames");
+            }
+            return node;
+        }
+
         public void run()
         {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
             final int sampleSize = ((m_audioTrack.getAudioFormat() == AudioFormat.ENCODING_PCM_8BIT) ? 1 : 2);
             final byte [] silenceData = new byte[m_bufferSize*2];
+            byte [] expandedData = null;
+
+            /* Data just written will be played after the whole
+             * AudioTrack buffer, used for the mouth-to-ear latency.
+             */
+            final long trackDelay = ((long) m_bufferSize / sampleSize * 1000000 / m_audioTrack.getSampleRate());
 
             /*
             final double C = (m_audioTrack.getSampleRate() / 440.0);
@@ -192,6 +407,9 @@ public abstract class AudioPlayer
 
                 int samples = 0;
                 int frames = 0;
+                int latencyFrames = 0;
+                long latencySum = 0;
+                long latencyMax = 0;
 
                 // warm up audio player with one silent block
                 int bytes = m_audioTrack.write(silenceData, 0, silenceData.length);
@@ -201,6 +419,9 @@ public abstract class AudioPlayer
 
                 for (;;)
                 {
+                    if (m_flushes != m_flushRequests)
+                        node = skipToFlush(node);
+
                     if (node.cmd == NodeCommand.BATCH_END)
                     {
                         Node next = node.next;
@@ -223,10 +444,29 @@ public abstract class AudioPlayer
                         break;
 
                     final ByteBuffer byteBuffer = node.audioFrame.getNioByteBuffer();
-                    bytes = m_audioTrack.write(byteBuffer.array(), byteBuffer.arrayOffset(), byteBuffer.remaining());
+                    if (node.rateShift > 0)
+                    {
+                        final int rate = (1 << node.rateShift);
+                        final int size = (byteBuffer.remaining() * rate);
+                        if ((expandedData == null) || (expandedData.length < size))
+                            expandedData = new byte[size];
+                        final int length = expand(byteBuffer, rate, expandedData);
+                        bytes = m_audioTrack.write(expandedData, 0, length);
+                    }
+                    else
+                        bytes = m_audioTrack.write(byteBuffer.array(), byteBuffer.arrayOffset(), byteBuffer.remaining());
                     if (bytes > 0)
                         samples += (bytes / sampleSize);
 
+                    if (node.captureTime != 0)
+                    {
+                        final long latency = (ClockSync.getTime() + trackDelay - node.captureTime);
+                        latencySum += latency;
+                        if (latency > latencyMax)
+                            latencyMax = latency;
+                        latencyFrames++;
+                    }
+
                     /*
                     Log.d(LOG_TAG, m_logPrefix
                             + "byteBuffer=" + byteBuffer.hashCode()
@@ -235,7 +475,14 @@ public abstract class AudioPlayer
                             + " samples=" + samples);
                     */
 
+                    if (node.flush)
+                        m_flushes++;
+
+                    compact(node);
+
+                    LeakTracker.untrack(this, node.audioFrame);
                     node.audioFrame.release();
+                    m_dequeued++;
                     frames++;
 
                     Node next = node.next;
@@ -277,12 +524,21 @@ public abstract class AudioPlayer
                 m_audioTrack.stop();
                 m_channel.setSessionState(m_serviceName, m_session, 0);
                 Log.d(LOG_TAG, m_logPrefix + "played " + frames + " frames, " + samples + " samples");
+                if (latencyFrames > 0)
+                {
+                    Log.i(LOG_TAG, m_logPrefix + "mouth-to-ear latency avg=" + (latencySum / latencyFrames / 1000) +
+                            "ms max=" + (latencyMax / 1000) + "ms");
+                }
 
                 if (node != null) // node.cmd == NodeCommand.STOP
                     break;
             }
 
             m_audioTrack.release();
+            m_arena.release();
+            if (m_framesCopied > 0)
+                Log.i(LOG_TAG, m_logPrefix + m_framesCopied + " frames copied to the arena");
+            LeakTracker.report(m_logPrefix, this);
             Log.i(LOG_TAG, m_logPrefix + "run done");
         }
     }
@@ -292,7 +548,7 @@ public abstract class AudioPlayer
             String audioFormat,
             Channel channel,
             String serviceName,
-            Session session)
+            Connection session)
     {
         final String [] ss = audioFormat.split(":");
         try
@@ -315,7 +571,7 @@ public abstract class AudioPlayer
                             AudioTrack.MODE_STREAM);
 
                     final String playerLogPrefix = (logPrefix + "/" + audioFormat + ": ");
-                    return new PcmImpl(playerLogPrefix, audioTrack, channel, serviceName, session, minBufferSize);
+                    return new PcmImpl(playerLogPrefix, audioFormat, audioTrack, channel, serviceName, session, minBufferSize);
                 }
             }
         }
@@ -326,7 +582,10 @@ public abstract class AudioPlayer
         return null;
     }
 
-    public abstract void play(boolean batchStart, RetainableByteBuffer audioFrame);
+    public abstract String getAudioFormat();
+    public abstract void setSession(Connection session);
+    public abstract void play(boolean batchStart, int rateShift, RetainableByteBuffer audioFrame, long captureTime);
     public abstract void batchEnd();
+    public abstract void flush(); /* next played frame preempts queued ones */
     public abstract void stopAndWait();
 }
@@ -37,7 +37,17 @@ public class AudioRecorder implements Runnable
     private static final String LOG_TAG = "AudioRecorder";
     private static final Logger s_logger = Logger.getLogger("org.jsl.wfwt.AudioRecorder");
 
-    private final SessionManager m_sessionManager;
+    /* Let's read not more than 1/5 sec to reduce latency,
+     * frame duration does not depend on the sample rate.
+     */
+    static final int FRAME_DURATION = 200; /* milliseconds */
+
+    /* Session manager of the talkgroup we transmit to,
+     * accessed by the recorder thread only, can be changed
+     * between transmissions with setSessionManager().
+     */
+    private SessionManager m_sessionManager;
+    private SessionManager m_nextSessionManager;
     private final String m_audioFormat;
     private final AudioRecord m_audioRecord;
     private final int m_frameSize;
@@ -47,6 +57,7 @@ public class AudioRecorder implements Runnable
     private final Condition m_cond;
     private int m_state;
     private boolean m_ptt;
+    private boolean m_priority;
     private ByteBuffer m_rogerBeep;
 
     private static final int IDLE  = 0;
@@ -94,8 +105,10 @@ public class AudioRecorder implements Runnable
         {
             /* Use buffer large enough for 4 audio frame messages */
             cache = new RetainableByteBufferCache(
-                    true, 4*Protocol.AudioFrame.getMessageSize(frameSize), Protocol.BYTE_ORDER, 8);
+                    true, 4*Protocol.AudioFrame.getMessageSize(Protocol.AudioFrame.TIMESTAMP_SIZE + frameSize),
+                    Protocol.BYTE_ORDER, 8);
             byteBuffer = cache.get();
+            LeakTracker.track(this, byteBuffer);
             array = byteBuffer.getNioByteBuffer().array();
             arrayOffset = byteBuffer.getNioByteBuffer().arrayOffset();
         }
@@ -106,8 +119,10 @@ public class AudioRecorder implements Runnable
             final int space = (byteBuffer.capacity() - position);
             if (space < messageSize)
             {
+                LeakTracker.untrack(this, byteBuffer);
                 byteBuffer.release();
                 byteBuffer = cache.get();
+                LeakTracker.track(this, byteBuffer);
                 if (BuildConfig.DEBUG && (byteBuffer.position() != 0))
                     throw new AssertionError();
                 array = byteBuffer.getNioByteBuffer().array();
@@ -118,6 +133,7 @@ public class AudioRecorder implements Runnable
 
         void release()
         {
+            LeakTracker.untrack(this, byteBuffer);
             byteBuffer.release();
             cache.clear(s_logger);
         }
@@ -160,8 +176,11 @@ public class AudioRecorder implements Runnable
         android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 
         final SendBuffer sendBuffer = new SendBuffer(frameSize);
+        final long frameDuration = /* microseconds, 16 bit mono */
+                ((long) frameSize / 2 * 1000000 / m_audioRecord.getSampleRate());
         boolean interrupted = false;
         boolean ptt;
+        boolean priority = false;
         int frames = 0;
         try
         {
@@ -175,8 +194,15 @@ public class AudioRecorder implements Runnable
 
                     if (m_state == START)
                     {
+                        if (m_nextSessionManager != null)
+                        {
+                            m_sessionManager = m_nextSessionManager;
+                            m_nextSessionManager = null;
+                        }
                         m_audioRecord.startRecording();
                         m_state = RUN;
+                        /* Priority is fixed for the whole transmission */
+                        priority = m_priority;
                     }
                     else if (m_state == STOP)
                     {
@@ -206,11 +232,13 @@ public class AudioRecorder implements Runnable
                     m_lock.unlock();
                 }
 
-                final int messageSize = Protocol.AudioFrame.getMessageSize(frameSize);
+                final int messageSize = Protocol.AudioFrame.getMessageSize(Protocol.AudioFrame.TIMESTAMP_SIZE + frameSize);
                 final RetainableByteBuffer byteBuffer = sendBuffer.getBuffer(messageSize);
                 final int position = byteBuffer.position();
 
-                Protocol.AudioFrame.init(byteBuffer.getNioByteBuffer(), /*batch start*/(frames == 0), frameSize);
+                Protocol.AudioFrame.init(byteBuffer.getNioByteBuffer(), /*batch start*/(frames == 0), frameSize, 0);
+                if (priority)
+                    Protocol.AudioFrame.setPriority(byteBuffer.getNioByteBuffer(), position);
                 if (BuildConfig.DEBUG && (byteBuffer.remaining() < frameSize))
                     throw new AssertionError();
 
@@ -221,6 +249,9 @@ public class AudioRecorder implements Runnable
 
                 if (bytesReady == frameSize)
                 {
+                    /* read() returns when the last sample is captured */
+                    final long captureTime = (ClockSync.getTime() - frameDuration);
+                    Protocol.AudioFrame.setCaptureTime(byteBuffer.getNioByteBuffer(), position, captureTime);
                     send(byteBuffer, position, messageSize, ptt);
                     frames++;
                 }
@@ -239,6 +270,7 @@ public class AudioRecorder implements Runnable
 
         m_audioRecord.release();
         sendBuffer.release();
+        LeakTracker.report("AudioRecorder [" + m_audioFormat + "]: ", sendBuffer);
 
         Log.i( LOG_TAG, "run [" + m_audioFormat + "]: done" );
 
@@ -246,6 +278,20 @@ public class AudioRecorder implements Runnable
             Thread.currentThread().interrupt();
     }
 
+    void setSessionManager(SessionManager sessionManager)
+    {
+        /* Transmission in progress is completed with the current one */
+        m_lock.lock();
+        try
+        {
+            m_nextSessionManager = sessionManager;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
     void setPTT(boolean ptt)
     {
         m_lock.lock();
@@ -282,6 +328,22 @@ public class AudioRecorder implements Runnable
         }
     }
 
+    void setPriority(boolean priority)
+    {
+        /* Emergency transmission preempts audio queued on the receivers,
+         * applied to the next transmission started.
+         */
+        m_lock.lock();
+        try
+        {
+            m_priority = priority;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
     void stopRecording()
     {
         Log.d(LOG_TAG, "stopRecording");
@@ -407,6 +469,12 @@ public class AudioRecorder implements Runnable
             Thread.currentThread().interrupt();
     }
 
+    static int getFrameSize(int sampleRate)
+    {
+        /* 16 bit mono samples for FRAME_DURATION */
+        return ((sampleRate * (Short.SIZE / Byte.SIZE) * FRAME_DURATION / 1000) & (Integer.MAX_VALUE - 1));
+    }
+
     static AudioRecorder create(SessionManager sessionManager)
     {
         for (SampleRateInfo sampleRateInfo : s_sampleRates)
@@ -419,8 +487,7 @@ public class AudioRecorder implements Runnable
             if ((minBufferSize != AudioRecord.ERROR) &&
                 (minBufferSize != AudioRecord.ERROR_BAD_VALUE))
             {
-                /* Let's read not more than 1/5 sec to reduce latency. */
-                final int frameSize = (sampleRate * (Short.SIZE / Byte.SIZE) / 5) & (Integer.MAX_VALUE - 1);
+                final int frameSize = getFrameSize(sampleRate);
                 int bufferSize = (frameSize * 4);
                 if (bufferSize < minBufferSize)
                     bufferSize = minBufferSize;
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+class BroadcastDiscovery implements Runnable
+{
+    /* Simple alternative to the NSD: each station periodically broadcasts
+     * a beacon with a device ID and a list of channels with ports
+     * it accepts connections on, and keeps a table of stations heard
+     * recently. Beacon format:
+     *   int   : magic
+     *   short : protocol version
+     *   short : device ID length
+     *   str   : device ID
+     *   short : number of channels
+     *   for each channel:
+     *     short : channel name length
+     *     str   : channel name
+     *     short : port
+     *   short : beacon interval (seconds), optional
+     * Beacon interval doubles with each beacon while peers are known,
+     * up to MAX_BEACON_INTERVAL, and returns to BEACON_INTERVAL when
+     * a new peer appears or the advertisements change, the interval
+     * is sent with the beacon, so receivers know when to expect the next.
+     * If advertisements do not fit one beacon they are split.
+     */
+    private static final String LOG_TAG = BroadcastDiscovery.class.getSimpleName();
+
+    static final int PORT = 27277;
+    private static final int MAGIC = 0x57465754; /* "WFWT" */
+    private static final int BEACON_INTERVAL = 1000; /* milliseconds */
+    private static final int MAX_BEACON_INTERVAL = 16000; /* milliseconds */
+    private static final int MAX_BEACON_SIZE = 1024;
+    private static final int RECEIVE_RETRY_DELAY = 1000; /* milliseconds */
+
+    public interface Listener
+    {
+        /* Called for each beacon received, not only for the new stations,
+         * so listener can retry connection to the station.
+         */
+        void onPeerFound(String channelName, String deviceID, InetSocketAddress addr);
+        void onPeerLost(String channelName, String deviceID);
+    }
+
+    private static class Peer
+    {
+        final String channelName;
+        final String deviceID;
+        InetSocketAddress addr;
+        long lastSeen;
+        long timeout; /* 3.5 beacon intervals of the peer */
+
+        Peer(String channelName, String deviceID)
+        {
+            this.channelName = channelName;
+            this.deviceID = deviceID;
+        }
+    }
+
+    private final String m_deviceID;
+    private final InetSocketAddress m_broadcastAddr;
+    private final Listener m_listener;
+    private final Charset m_charset;
+    private final DatagramSocket m_socket;
+    private final Thread m_thread;
+    private final HashMap<String, Integer> m_advertisements; /* channel name -> port */
+    private final HashMap<String, Peer> m_peers; /* accessed by discovery thread only */
+    private volatile boolean m_stop;
+    private volatile boolean m_resetInterval;
+
+    BroadcastDiscovery(String deviceID, InetSocketAddress bindAddr, InetSocketAddress broadcastAddr, Listener listener)
+            throws SocketException
+    {
+        m_deviceID = deviceID;
+        m_broadcastAddr = broadcastAddr;
+        m_listener = listener;
+        m_charset = Charset.defaultCharset();
+        m_socket = new DatagramSocket(null);
+        m_socket.setReuseAddress(true);
+        m_socket.setBroadcast(true);
+        m_socket.bind(bindAddr);
+        m_socket.setSoTimeout(BEACON_INTERVAL);
+        m_thread = new Thread(this, LOG_TAG);
+        m_advertisements = new HashMap<String, Integer>();
+        m_peers = new HashMap<String, Peer>();
+    }
+
+    static BroadcastDiscovery create(String deviceID, Listener listener)
+    {
+        try
+        {
+            return new BroadcastDiscovery(
+                    deviceID,
+                    new InetSocketAddress(PORT),
+                    new InetSocketAddress(InetAddress.getByName("255.255.255.255"), PORT),
+                    listener);
+        }
+        catch (final IOException ex)
+        {
+            Log.w(LOG_TAG, ex.toString());
+        }
+        return null;
+    }
+
+    void start()
+    {
+        m_thread.start();
+    }
+
+    void stop()
+    {
+        m_stop = true;
+        m_socket.close();
+        try
+        {
+            m_thread.join();
+        }
+        catch (final InterruptedException ex)
+        {
+            Log.w(LOG_TAG, ex.toString(), ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void advertise(String channelName, int port)
+    {
+        synchronized (m_advertisements)
+        {
+            m_advertisements.put(channelName, port);
+        }
+        m_resetInterval = true;
+    }
+
+    void withdraw(String channelName)
+    {
+        synchronized (m_advertisements)
+        {
+            m_advertisements.remove(channelName);
+        }
+        m_resetInterval = true;
+    }
+
+    private static void putString(ByteBuffer byteBuffer, byte [] bytes)
+    {
+        byteBuffer.putShort((short) bytes.length);
+        byteBuffer.put(bytes);
+    }
+
+    private String getString(ByteBuffer byteBuffer)
+    {
+        final int length = byteBuffer.getShort();
+        if ((length < 0) || (length > byteBuffer.remaining()))
+            throw new BufferUnderflowException();
+        final String ret = new String(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), length, m_charset);
+        byteBuffer.position(byteBuffer.position() + length);
+        return ret;
+    }
+
+    private void sendBeacons(ByteBuffer byteBuffer, int interval)
+    {
+        /* Advertisements which do not fit one beacon are sent with the next one */
+        final byte [] deviceID = m_deviceID.getBytes(m_charset);
+        final ArrayList<byte []> channelNames = new ArrayList<byte []>();
+        final ArrayList<Integer> ports = new ArrayList<Integer>();
+        synchronized (m_advertisements)
+        {
+            for (Map.Entry<String, Integer> entry : m_advertisements.entrySet())
+            {
+                channelNames.add(entry.getKey().getBytes(m_charset));
+                ports.add(entry.getValue());
+            }
+        }
+
+        int idx = 0;
+        while (idx < channelNames.size())
+        {
+            byteBuffer.clear();
+            byteBuffer.putInt(MAGIC);
+            byteBuffer.putShort(Protocol.VERSION);
+            putString(byteBuffer, deviceID);
+            final int channelsPosition = byteBuffer.position();
+            byteBuffer.putShort((short) 0);
+
+            int channels = 0;
+            for (; idx<channelNames.size(); idx++)
+            {
+                final byte [] channelName = channelNames.get(idx);
+                /* Keep space for the interval */
+                if ((2 + channelName.length + 2 + 2) > byteBuffer.remaining())
+                {
+                    if (channels == 0)
+                    {
+                        Log.w(LOG_TAG, "channel name too long, not advertised");
+                        idx++;
+                    }
+                    break;
+                }
+                putString(byteBuffer, channelName);
+                byteBuffer.putShort(ports.get(idx).shortValue());
+                channels++;
+            }
+
+            if (channels == 0)
+                continue;
+
+            byteBuffer.putShort(channelsPosition, (short) channels);
+            byteBuffer.putShort((short) (interval / 1000));
+
+            try
+            {
+                m_socket.send(new DatagramPacket(byteBuffer.array(), byteBuffer.position(), m_broadcastAddr));
+            }
+            catch (final IOException ex)
+            {
+                /* Network can be down for a while, just try later */
+                if (!m_stop)
+                    Log.i(LOG_TAG, ex.toString());
+                break;
+            }
+        }
+    }
+
+    private boolean handleBeacon(ByteBuffer byteBuffer, InetAddress addr, long currentTime)
+    {
+        /* Returns true if a new peer is found */
+        if ((byteBuffer.getInt() != MAGIC) ||
+            (byteBuffer.getShort() != Protocol.VERSION))
+        {
+            /* Station with another protocol version can not be connected anyway */
+            return false;
+        }
+
+        final String deviceID = getString(byteBuffer);
+        if (deviceID.equals(m_deviceID))
+            return false;
+
+        final int channels = byteBuffer.getShort();
+        if ((channels < 0) || (channels * 4 > byteBuffer.remaining()))
+            throw new BufferUnderflowException();
+
+        final String [] channelNames = new String[channels];
+        final int [] ports = new int[channels];
+        for (int idx=0; idx<channels; idx++)
+        {
+            channelNames[idx] = getString(byteBuffer);
+            ports[idx] = (byteBuffer.getShort() & 0xFFFF);
+        }
+
+        /* Beacon of the old version does not have the interval */
+        int interval = BEACON_INTERVAL;
+        if (byteBuffer.remaining() >= 2)
+            interval = Math.max(byteBuffer.getShort() * 1000, BEACON_INTERVAL);
+
+        boolean newPeer = false;
+        for (int idx=0; idx<channels; idx++)
+        {
+            final String channelName = channelNames[idx];
+            final int port = ports[idx];
+            final String key = (channelName + '\0' + deviceID);
+
+            Peer peer = m_peers.get(key);
+            if (peer == null)
+            {
+                peer = new Peer(channelName, deviceID);
+                m_peers.put(key, peer);
+                newPeer = true;
+            }
+
+            if ((peer.addr == null) || (peer.addr.getPort() != port) || !peer.addr.getAddress().equals(addr))
+            {
+                peer.addr = new InetSocketAddress(addr, port);
+                Log.i(LOG_TAG, "peer " + deviceID + " [" + channelName + "] " + peer.addr);
+            }
+            peer.lastSeen = currentTime;
+            peer.timeout = (interval * 7 / 2);
+            m_listener.onPeerFound(channelName, deviceID, peer.addr);
+        }
+        return newPeer;
+    }
+
+    private void expirePeers(long currentTime)
+    {
+        final Iterator<Peer> it = m_peers.values().iterator();
+        while (it.hasNext())
+        {
+            final Peer peer = it.next();
+            if ((currentTime - peer.lastSeen) > peer.timeout)
+            {
+                Log.i(LOG_TAG, "peer " + peer.deviceID + " [" + peer.channelName + "] lost");
+                it.remove();
+                m_listener.onPeerLost(peer.channelName, peer.deviceID);
+            }
+        }
+    }
+
+    public void run()
+    {
+        Log.i(LOG_TAG, "start " + m_socket.getLocalSocketAddress());
+
+        final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_BEACON_SIZE);
+        final byte [] recvBuffer = new byte[MAX_BEACON_SIZE];
+        final DatagramPacket recvPacket = new DatagramPacket(recvBuffer, recvBuffer.length);
+        long nextBeaconTime = 0;
+        int interval = BEACON_INTERVAL;
+
+        while (!m_stop)
+        {
+            long currentTime = System.currentTimeMillis();
+            if (m_resetInterval)
+            {
+                m_resetInterval = false;
+                interval = BEACON_INTERVAL;
+                nextBeaconTime = Math.min(nextBeaconTime, currentTime + interval);
+            }
+
+            if (currentTime >= nextBeaconTime)
+            {
+                expirePeers(currentTime);
+
+                /* Back off while peers are known, they have heard us already */
+                if (m_peers.isEmpty())
+                    interval = BEACON_INTERVAL;
+                else
+                    interval = Math.min(interval * 2, MAX_BEACON_INTERVAL);
+
+                sendBeacons(sendBuffer, interval);
+                nextBeaconTime = (currentTime + interval);
+            }
+
+            try
+            {
+                m_socket.setSoTimeout((int) Math.max(1, nextBeaconTime - currentTime));
+                recvPacket.setLength(recvBuffer.length);
+                m_socket.receive(recvPacket);
+                currentTime = System.currentTimeMillis();
+                try
+                {
+                    if (handleBeacon(
+                            ByteBuffer.wrap(recvBuffer, 0, recvPacket.getLength()),
+                            recvPacket.getAddress(), currentTime))
+                    {
+                        /* Let the new station hear us soon */
+                        m_resetInterval = true;
+                    }
+                }
+                catch (final BufferUnderflowException ex)
+                {
+                    Log.i(LOG_TAG, "invalid beacon from " + recvPacket.getAddress());
+                }
+            }
+            catch (final SocketTimeoutException ex)
+            {
+                /* Time to send next beacon */
+            }
+            catch (final IOException ex)
+            {
+                if (m_stop || m_socket.isClosed())
+                    break;
+
+                /* Network can be down for a while, try again later */
+                Log.w(LOG_TAG, ex.toString());
+                try
+                {
+                    Thread.sleep(RECEIVE_RETRY_DELAY);
+                }
+                catch (final InterruptedException ex2)
+                {
+                    Log.w(LOG_TAG, ex2.toString());
+                    break;
+                }
+            }
+        }
+
+        Log.i(LOG_TAG, "stop");
+    }
+}
@@ -27,18 +27,25 @@ import org.jsl.collider.*;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.CharacterCodingException;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 class Channel
 {
     private static final String LOG_TAG = "Channel";
 
+    private static final int RESOLVE_RETRY_DELAY = 500; /* milliseconds */
+    private static final int RESOLVE_MAX_ATTEMPTS = 4;
+
     public interface StateListener
     {
         void onStateChanged( String stateString, boolean registered );
-        void onStationListChanged( StationInfo [] stationInfo );
+        void onStationListChanged(
+                StationInfo [] added, int [] addedPositions, StationInfo [] updated, ChannelSession [] removed );
+        void onFloorStateChanged( int floorState );
     }
 
     private static class ServiceInfo
@@ -46,12 +53,32 @@ class Channel
         NsdServiceInfo nsdServiceInfo;
         int nsdUpdates;
         Connector connector;
-        Session session;
+        Connection session;
         ChannelSession channelSession;
         String stationName;
         String addr;
         int state;
         long ping;
+        int changes; /* StationInfo.CHANGED_XXX not notified yet */
+
+        /* Last address the service was resolved to
+         * and the state kept to resume a closed session.
+         */
+        InetSocketAddress sockAddr;
+        long resumptionToken;
+        AudioPlayer audioPlayer;
+
+        int resolveFailures;
+        long resolveRetryTime;
+
+        /* Address from the broadcast discovery beacon */
+        InetSocketAddress beaconAddr;
+    }
+
+    private static boolean isPresent(ServiceInfo serviceInfo)
+    {
+        /* Service is visible with NSD or with broadcast discovery */
+        return ((serviceInfo.nsdServiceInfo != null) || (serviceInfo.beaconAddr != null));
     }
 
     private static class SessionInfo
@@ -61,6 +88,7 @@ class Channel
         String stationName;
         int state;
         long ping;
+        int changes;
 
         SessionInfo(ChannelSession channelSession, String addr, String stationName)
         {
@@ -78,23 +106,131 @@ class Channel
     private final String m_serviceType;
     private final String m_name;
     private final SessionManager m_sessionManager;
+    private final FloorControl m_floorControl;
     private final TimerQueue m_timerQueue;
+    private final TimingWheel m_timingWheel; /* session timers */
     private final int m_pingInterval;
-
+    private final PeerCache m_peerCache;
+    private final BroadcastDiscovery m_broadcastDiscovery;
+    private final LinkManager m_linkManager;
+    private final Scanner m_scanner;
+
+    /* Channel state is guarded by m_lock. Discovery events (NSD
+     * registration, resolve, service found/lost, broadcast beacons)
+     * and listener notifications run on m_eventLoop, collider session
+     * callbacks (connect, handshake, resume, gossip, ping, close)
+     * update the state under the lock in their own threads,
+     * some of them need an answer at once.
+     */
     private final ReentrantLock m_lock;
     private final TreeMap<String, ServiceInfo> m_serviceInfo; /* Sorting required */
-    private final LinkedHashMap<Session, SessionInfo> m_sessions;
+    private final LinkedHashMap<Connection, SessionInfo> m_sessions;
     private StateListener m_stateListener;
+    private final EventLoop m_eventLoop;
+    private final Notifier m_notifier;
+    private boolean m_notificationPosted;
+    private boolean m_stateChanged;
+    private boolean m_stationListChanged;
+    private final HashMap<ChannelSession, StationInfo> m_stations; /* last notified to the listener */
+    private final HashSet<ChannelSession> m_visibleStations;
+    private boolean m_floorStateChanged;
     private ChannelAcceptor m_acceptor;
     private int m_localPort;
     private RegistrationListener m_registrationListener;
     private String m_serviceName;
-    private ResolveListener m_resolveListener;
+    private final HashMap<String, ResolveListener> m_resolveListeners;
+    private final ResolveTimer m_resolveTimer;
+    private boolean m_resolveTimerScheduled;
+    /* Resolve concurrency is decreased when the platform refuses
+     * a resolve (FAILURE_ALREADY_ACTIVE), and increased by one
+     * after each m_resolveLimit successful resolves in a row,
+     * up to Config.RESOLVE_CONCURRENCY.
+     */
+    private int m_resolveLimit;
+    private int m_resolveSuccesses;
+
+    /* Resolve statistics, times in milliseconds */
+    private int m_resolveStarted;
+    private int m_resolveFailed;
+    private int m_resolveTimedOut;
+    private long m_resolveTotalTime;
+    private long m_resolveMaxTime;
     private CountDownLatch m_stopLatch;
+    private final SecureRandom m_random;
+    private final HashMap<Long, ParkedSession> m_parkedSessions;
+    private final Membership m_membership;
+    private final GossipTimer m_gossipTimer;
+    private RetainableByteBuffer m_gossipMsg;
+
+    /* State of the closed server session kept for a while,
+     * so the client can resume it with a ResumeRequest
+     * without a full handshake and a new audio player.
+     */
+    class ParkedSession implements TimerQueue.Task
+    {
+        final long resumptionToken;
+        final String stationName;
+        final AudioPlayer audioPlayer;
+
+        ParkedSession(long resumptionToken, String stationName, AudioPlayer audioPlayer)
+        {
+            this.resumptionToken = resumptionToken;
+            this.stationName = stationName;
+            this.audioPlayer = audioPlayer;
+        }
+
+        public long run()
+        {
+            m_lock.lock();
+            try
+            {
+                if (m_parkedSessions.get(resumptionToken) != this)
+                    return 0;
+                m_parkedSessions.remove(resumptionToken);
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            Log.i(LOG_TAG, m_name + ": session [" + stationName + "] expired");
+            audioPlayer.stopAndWait();
+            return 0;
+        }
+    }
 
     private class RegistrationListener implements NsdManager.RegistrationListener
     {
-        public void onRegistrationFailed( NsdServiceInfo serviceInfo, int errorCode )
+        /* NSD callbacks are handled by the event loop,
+         * so the NSD manager thread never waits for the channel lock.
+         */
+        public void onRegistrationFailed( final NsdServiceInfo serviceInfo, final int errorCode )
+        {
+            m_eventLoop.post( new Runnable() {
+                public void run() {
+                    handleRegistrationFailed( serviceInfo, errorCode );
+                }
+            });
+        }
+
+        public void onServiceRegistered( final NsdServiceInfo nsdServiceInfo )
+        {
+            m_eventLoop.post( new Runnable() {
+                public void run() {
+                    handleServiceRegistered( nsdServiceInfo );
+                }
+            });
+        }
+
+        public void onServiceUnregistered( final NsdServiceInfo nsdServiceInfo )
+        {
+            m_eventLoop.post( new Runnable() {
+                public void run() {
+                    handleServiceUnregistered( nsdServiceInfo );
+                }
+            });
+        }
+
+        private void handleRegistrationFailed( NsdServiceInfo serviceInfo, int errorCode )
         {
             Log.e( LOG_TAG, m_name + ": onRegistrationFailed: " + serviceInfo + " (" + errorCode + ")" );
             Acceptor acceptor;
@@ -136,7 +272,7 @@ class Channel
                 throw new AssertionError();
         }
 
-        public void onServiceRegistered( NsdServiceInfo nsdServiceInfo )
+        private void handleServiceRegistered( NsdServiceInfo nsdServiceInfo )
         {
             /* Service registered now,
              * we use service name to distinguish client from server,
@@ -163,19 +299,19 @@ class Channel
                         final ServiceInfo serviceInfo = entry.getValue();
                         if (m_serviceName.compareTo(entry.getKey()) > 0)
                         {
-                            Log.i(LOG_TAG, m_name + ": resolve service: " + serviceInfo.nsdServiceInfo);
-                            serviceInfo.nsdUpdates = 0;
-                            m_resolveListener = new ResolveListener(entry.getKey());
-                            m_nsdManager.resolveService(serviceInfo.nsdServiceInfo, m_resolveListener);
-                            break;
+                            /* Can be connected already using cached address */
+                            if (isPresent(serviceInfo) &&
+                                (serviceInfo.connector == null) &&
+                                (serviceInfo.session == null))
+                            {
+                                connectLocked(entry.getKey(), serviceInfo);
+                            }
                         }
                         else
                             Log.i(LOG_TAG, m_name + ": waiting connection from " + serviceInfo.nsdServiceInfo);
                     }
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged( getStationListLocked() );
+                    notifyStationListChangedLocked();
                     return;
                 }
                 acceptor = m_acceptor;
@@ -198,7 +334,7 @@ class Channel
             }
         }
 
-        public void onServiceUnregistered( NsdServiceInfo nsdServiceInfo )
+        private void handleServiceUnregistered( NsdServiceInfo nsdServiceInfo )
         {
             Log.i( LOG_TAG, m_name + ": onServiceUnregistered: " + nsdServiceInfo );
             Acceptor acceptor;
@@ -230,48 +366,417 @@ class Channel
         }
     }
 
-    private void resolveNextLocked( String skipServiceName )
+    private boolean openChannelLocked( String serviceName, ServiceInfo serviceInfo )
+    {
+        /* If there is a link to the station already
+         * the talkgroup is multiplexed over it.
+         */
+        final Link link = m_linkManager.getLink( getDeviceID(serviceName) );
+        if (link == null)
+            return false;
+
+        final Link.Tunnel tunnel = link.createChannel();
+        if (tunnel == null)
+            return false;
+
+        final HandshakeClientSession handshakeSession = new HandshakeClientSession(
+                Channel.this, m_audioFormat, m_stationName, serviceName, tunnel,
+                m_sessionManager, m_timerQueue, m_pingInterval );
+        if (!tunnel.open(m_name, handshakeSession))
+            return false;
+
+        Log.i( LOG_TAG, m_name + ": open [" + serviceName + "] over " + tunnel );
+        final long resumptionToken = serviceInfo.resumptionToken;
+        serviceInfo.session = tunnel;
+        serviceInfo.nsdUpdates = 0;
+        serviceInfo.resumptionToken = 0;
+        handshakeSession.start( resumptionToken );
+        return true;
+    }
+
+    private void connectLocked( String serviceName, ServiceInfo serviceInfo )
+    {
+        if (openChannelLocked(serviceName, serviceInfo))
+            return;
+
+        if (serviceInfo.sockAddr != null)
+        {
+            /* Address is known from the previous session or from the peer cache,
+             * resolve will be done only if connection fails.
+             */
+            Log.i( LOG_TAG, m_name + ": connect [" + serviceName + "] " + serviceInfo.sockAddr );
+            serviceInfo.connector = new ChannelConnector( serviceInfo.sockAddr, serviceName );
+            m_collider.addConnector( serviceInfo.connector );
+        }
+        else
+            resolveNextLocked();
+    }
+
+    private void connectCachedPeersLocked()
     {
+        /* Connect to the stations seen last time before the NSD finds them,
+         * records will be reconciled with the discovery results later.
+         */
+        final String serviceName = createServiceName();
+        final String channelPrefix = serviceName.substring(0, serviceName.indexOf(WalkieService.SERVICE_NAME_SEPARATOR) + 1);
+        for (Map.Entry<String, InetSocketAddress> entry : m_peerCache.getAll().entrySet())
+        {
+            final String peerServiceName = entry.getKey();
+            if (peerServiceName.startsWith(channelPrefix) &&
+                (serviceName.compareTo(peerServiceName) > 0) &&
+                !m_serviceInfo.containsKey(peerServiceName))
+            {
+                final ServiceInfo serviceInfo = new ServiceInfo();
+                serviceInfo.sockAddr = entry.getValue();
+                m_serviceInfo.put(peerServiceName, serviceInfo);
+                connectLocked(peerServiceName, serviceInfo);
+            }
+        }
+    }
+
+    private void resolveNextLocked()
+    {
+        /* Start resolve for the services we have to connect to,
+         * up to m_resolveLimit operations at once.
+         * Services failed to resolve are retried after a delay.
+         */
+        if ((m_serviceName == null) || (m_stopLatch != null))
+            return;
+
+        final long currentTime = System.currentTimeMillis();
+        long retryDelay = Long.MAX_VALUE;
+
         for (Map.Entry<String, ServiceInfo> entry : m_serviceInfo.entrySet())
         {
+            if (m_resolveListeners.size() >= m_resolveLimit)
+                break;
+
             final String serviceName = entry.getKey();
-            if (!serviceName.equals(skipServiceName) &&
-                (m_serviceName.compareTo(serviceName) > 0))
+            final ServiceInfo serviceInfo = entry.getValue();
+            if ((m_serviceName.compareTo(serviceName) > 0) &&
+                (serviceInfo.nsdServiceInfo != null) &&
+                (serviceInfo.nsdUpdates > 0) &&
+                (serviceInfo.connector == null) &&
+                (serviceInfo.session == null) &&
+                !m_resolveListeners.containsKey(serviceName))
             {
-                final ServiceInfo serviceInfo = entry.getValue();
-                if ((serviceInfo.nsdUpdates > 0) &&
-                    (serviceInfo.connector == null) &&
-                    (serviceInfo.session == null))
+                final long delay = (serviceInfo.resolveRetryTime - currentTime);
+                if (delay > 0)
+                {
+                    if (delay < retryDelay)
+                        retryDelay = delay;
+                }
+                else if (!openChannelLocked(serviceName, serviceInfo))
                 {
-                    Log.i( LOG_TAG, m_name + ": resolveNextLocked: " + serviceInfo.nsdServiceInfo );
+                    Log.i( LOG_TAG, m_name + ": resolve service: " + serviceInfo.nsdServiceInfo );
                     serviceInfo.nsdUpdates = 0;
-                    m_resolveListener = new ResolveListener( serviceName );
-                    m_nsdManager.resolveService( serviceInfo.nsdServiceInfo, m_resolveListener );
+                    final ResolveListener resolveListener = new ResolveListener( serviceName, currentTime );
+                    m_resolveListeners.put( serviceName, resolveListener );
+                    m_resolveStarted++;
+                    m_nsdManager.resolveService( serviceInfo.nsdServiceInfo, resolveListener );
+                    m_timerQueue.schedule( resolveListener, Config.RESOLVE_TIMEOUT, TimeUnit.SECONDS );
                 }
             }
         }
+
+        if ((retryDelay != Long.MAX_VALUE) && !m_resolveTimerScheduled)
+        {
+            m_resolveTimerScheduled = true;
+            m_timerQueue.schedule( m_resolveTimer, retryDelay, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private void onResolveSucceededLocked()
+    {
+        if ((m_resolveLimit < Config.RESOLVE_CONCURRENCY) && (++m_resolveSuccesses >= m_resolveLimit))
+        {
+            m_resolveLimit++;
+            m_resolveSuccesses = 0;
+            Log.i( LOG_TAG, m_name + ": resolve limit " + m_resolveLimit );
+        }
+    }
+
+    private void onResolveFailedLocked( String serviceName, ServiceInfo serviceInfo, boolean alreadyActive )
+    {
+        /* Retry with exponential backoff,
+         * give up until the next NSD update after RESOLVE_MAX_ATTEMPTS.
+         */
+        if (alreadyActive)
+        {
+            /* Platform does not allow so many resolve operations at once */
+            m_resolveLimit = Math.max( 1, m_resolveListeners.size() );
+            m_resolveSuccesses = 0;
+            Log.i( LOG_TAG, m_name + ": resolve limit " + m_resolveLimit );
+            serviceInfo.nsdUpdates++;
+            serviceInfo.resolveRetryTime = (System.currentTimeMillis() + RESOLVE_RETRY_DELAY);
+        }
+        else if (++serviceInfo.resolveFailures < RESOLVE_MAX_ATTEMPTS)
+        {
+            serviceInfo.nsdUpdates++;
+            serviceInfo.resolveRetryTime =
+                    (System.currentTimeMillis() + (RESOLVE_RETRY_DELAY << (serviceInfo.resolveFailures - 1)));
+        }
+        else
+        {
+            Log.i( LOG_TAG, m_name + ": failed to resolve [" + serviceName + "], wait NSD update" );
+            serviceInfo.resolveFailures = 0;
+        }
+    }
+
+    private boolean onResolveDoneLocked( String serviceName, ServiceInfo serviceInfo )
+    {
+        /* Returns true if the channel is being stopped. */
+        if (m_stopLatch != null)
+        {
+            m_serviceInfo.remove( serviceName );
+            if (m_resolveListeners.isEmpty())
+                m_stopLatch.countDown();
+            return true;
+        }
+        else if (!isPresent(serviceInfo))
+        {
+            /* Service lost while being resolved, let's remove record. */
+            m_serviceInfo.remove( serviceName );
+            resolveNextLocked();
+            return true;
+        }
+        return false;
+    }
+
+    private String getResolveStatsLocked()
+    {
+        final int resolved = (m_resolveStarted - m_resolveFailed - m_resolveTimedOut - m_resolveListeners.size());
+        return "started=" + m_resolveStarted +
+                " failed=" + m_resolveFailed +
+                " timedOut=" + m_resolveTimedOut +
+                " avg=" + ((resolved > 0) ? (m_resolveTotalTime / resolved) : 0) + "ms" +
+                " max=" + m_resolveMaxTime + "ms";
+    }
+
+    private class GossipTimer implements TimerQueue.Task
+    {
+        public long run()
+        {
+            updateGossip();
+            return Config.GOSSIP_INTERVAL;
+        }
+    }
+
+    private void updateGossip()
+    {
+        /* Increment own heartbeat and prepare the message with known members,
+         * it is not sent from here: each session sends the last one
+         * together with its keepalive ping, so gossip does not wake
+         * the radio by itself.
+         */
+        String serviceName;
+        String stationName;
+
+        m_lock.lock();
+        try
+        {
+            if (m_stopLatch != null)
+                return;
+            serviceName = getLocalServiceNameLocked();
+            stationName = m_stationName;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        final List<Protocol.Gossip.Entry> entries =
+                m_membership.tick(serviceName, stationName, System.currentTimeMillis());
+
+        RetainableByteBuffer msg;
+        try
+        {
+            msg = Protocol.Gossip.create(entries);
+        }
+        catch (final CharacterCodingException ex)
+        {
+            Log.w(LOG_TAG, ex.toString(), ex);
+            return;
+        }
+
+        m_lock.lock();
+        try
+        {
+            final RetainableByteBuffer prev = m_gossipMsg;
+            m_gossipMsg = msg;
+            msg = prev;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (msg != null)
+            msg.release();
+    }
+
+    RetainableByteBuffer getGossip()
+    {
+        /* Returns the last gossip message retained, or null */
+        m_lock.lock();
+        try
+        {
+            final RetainableByteBuffer msg = m_gossipMsg;
+            if (msg != null)
+                msg.retain();
+            return msg;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void onGossip(List<Protocol.Gossip.Entry> entries)
+    {
+        String serviceName;
+        m_lock.lock();
+        try
+        {
+            serviceName = getLocalServiceNameLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        m_membership.merge(serviceName, entries, System.currentTimeMillis());
+    }
+
+    StationInfo [] getStationList()
+    {
+        /* Connected stations with fresh link statistics */
+        m_lock.lock();
+        try
+        {
+            return getStationListLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    Membership.Member [] getMembers()
+    {
+        /* All stations of the channel known by gossip,
+         * including ones we are not connected to.
+         */
+        return m_membership.getMembers();
+    }
+
+    private class ResolveTimer implements TimerQueue.Task
+    {
+        public long run()
+        {
+            m_lock.lock();
+            try
+            {
+                m_resolveTimerScheduled = false;
+                resolveNextLocked();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            return 0;
+        }
     }
 
-    private class ResolveListener implements NsdManager.ResolveListener
+    private class ResolveListener implements NsdManager.ResolveListener, TimerQueue.Task
     {
         private final String m_serviceName;
+        private final long m_startTime;
 
-        ResolveListener(String serviceName)
+        ResolveListener(String serviceName, long startTime)
         {
             m_serviceName = serviceName;
+            m_startTime = startTime;
+        }
+
+        private void cancelTimer()
+        {
+            /* Can not be done under the lock,
+             * timer handler acquires the lock as well.
+             */
+            try
+            {
+                m_timerQueue.cancel( this );
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w( LOG_TAG, ex.toString(), ex );
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public long run()
+        {
+            /* Resolve timeout, NSD manager does not allow to cancel the operation,
+             * so just forget it and ignore the callback if it will be called later.
+             */
+            Log.i( LOG_TAG, m_name + ": resolve timeout [" + m_serviceName + "]" );
+            m_lock.lock();
+            try
+            {
+                if (m_resolveListeners.get(m_serviceName) == this)
+                {
+                    m_resolveListeners.remove( m_serviceName );
+                    m_resolveTimedOut++;
+
+                    final ServiceInfo serviceInfo = m_serviceInfo.get( m_serviceName );
+                    if ((serviceInfo != null) && !onResolveDoneLocked(m_serviceName, serviceInfo))
+                    {
+                        onResolveFailedLocked( m_serviceName, serviceInfo, false );
+                        resolveNextLocked();
+                    }
+                }
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            return 0;
+        }
+
+        public void onResolveFailed( final NsdServiceInfo nsdServiceInfo, final int errorCode )
+        {
+            m_eventLoop.post( new Runnable() {
+                public void run() {
+                    handleResolveFailed( nsdServiceInfo, errorCode );
+                }
+            });
         }
 
-        String getServiceName()
+        public void onServiceResolved( final NsdServiceInfo nsdServiceInfo )
         {
-            return m_serviceName;
+            final long resolveTime = (System.currentTimeMillis() - m_startTime);
+            m_eventLoop.post( new Runnable() {
+                public void run() {
+                    handleServiceResolved( nsdServiceInfo, resolveTime );
+                }
+            });
         }
 
-        public void onResolveFailed( NsdServiceInfo nsdServiceInfo, int errorCode )
+        private void handleResolveFailed( NsdServiceInfo nsdServiceInfo, int errorCode )
         {
             Log.i( LOG_TAG, m_name + ": onResolveFailed: " + nsdServiceInfo + " errorCode=" + errorCode );
             m_lock.lock();
             try
             {
+                if (m_resolveListeners.get(m_serviceName) != this)
+                {
+                    /* Timed out already */
+                    return;
+                }
+
+                m_resolveListeners.remove( m_serviceName );
+                m_resolveFailed++;
+
                 final ServiceInfo serviceInfo = m_serviceInfo.get( m_serviceName );
                 if (serviceInfo != null)
                 {
@@ -281,21 +786,10 @@ class Channel
                         throw new AssertionError();
                     }
 
-                    if (m_stopLatch != null)
+                    if (!onResolveDoneLocked(m_serviceName, serviceInfo))
                     {
-                        m_serviceInfo.remove( m_serviceName );
-                        m_registrationListener = null;
-                        m_stopLatch.countDown();
-                    }
-                    else if (serviceInfo.nsdServiceInfo == null)
-                    {
-                        /* Service lost while being resolved, let's remove record. */
-                        m_serviceInfo.remove( m_serviceName );
-                    }
-                    else
-                    {
-                        m_resolveListener = null;
-                        resolveNextLocked( m_serviceName );
+                        onResolveFailedLocked( m_serviceName, serviceInfo, (errorCode == NsdManager.FAILURE_ALREADY_ACTIVE) );
+                        resolveNextLocked();
                     }
                 }
                 else
@@ -305,14 +799,29 @@ class Channel
             {
                 m_lock.unlock();
             }
+
+            cancelTimer();
         }
 
-        public void onServiceResolved( NsdServiceInfo nsdServiceInfo )
+        private void handleServiceResolved( NsdServiceInfo nsdServiceInfo, long resolveTime )
         {
-            Log.i( LOG_TAG, m_name + ": onServiceResolved: " + nsdServiceInfo );
             m_lock.lock();
             try
             {
+                if (m_resolveListeners.get(m_serviceName) != this)
+                {
+                    Log.i( LOG_TAG, m_name + ": onServiceResolved: " + nsdServiceInfo + " (timed out)" );
+                    return;
+                }
+
+                m_resolveListeners.remove( m_serviceName );
+                m_resolveTotalTime += resolveTime;
+                if (resolveTime > m_resolveMaxTime)
+                    m_resolveMaxTime = resolveTime;
+
+                Log.i( LOG_TAG, m_name + ": onServiceResolved: " + nsdServiceInfo +
+                        " in " + resolveTime + "ms (" + getResolveStatsLocked() + ")" );
+
                 final ServiceInfo serviceInfo = m_serviceInfo.get( m_serviceName );
                 if (serviceInfo != null)
                 {
@@ -322,21 +831,19 @@ class Channel
                         throw new AssertionError();
                     }
 
-                    m_resolveListener = null;
-
                     if (m_stopLatch == null)
                     {
                         final InetSocketAddress addr = new InetSocketAddress( nsdServiceInfo.getHost(), nsdServiceInfo.getPort() );
+                        serviceInfo.resolveFailures = 0;
+                        onResolveSucceededLocked();
+                        serviceInfo.sockAddr = addr;
                         serviceInfo.connector = new ChannelConnector( addr, m_serviceName );
                         m_collider.addConnector( serviceInfo.connector );
 
-                        resolveNextLocked( m_serviceName );
+                        resolveNextLocked();
                     }
                     else
-                    {
-                        m_serviceInfo.remove( m_serviceName );
-                        m_stopLatch.countDown();
-                    }
+                        onResolveDoneLocked( m_serviceName, serviceInfo );
                 }
                 else
                     Log.w( LOG_TAG, m_name + ": internal error: service info not found [" + m_serviceName + "]" );
@@ -345,29 +852,27 @@ class Channel
             {
                 m_lock.unlock();
             }
+
+            cancelTimer();
         }
     }
 
     private class ChannelAcceptor extends Acceptor
     {
+        ChannelAcceptor()
+        {
+            super();
+        }
+
+        ChannelAcceptor(InetSocketAddress addr)
+        {
+            super(addr);
+        }
+
         public Session.Listener createSessionListener( Session session )
         {
             Log.i( LOG_TAG, m_name + ": " + session.getRemoteAddress() + ": session accepted" );
-            m_lock.lock();
-            try
-            {
-                if (m_stopLatch == null)
-                {
-                    return new HandshakeServerSession(
-                            m_audioFormat, m_stationName, Channel.this, session, m_sessionManager, m_timerQueue, m_pingInterval );
-                }
-                /* else channel is being stopped, just skip a new income connection. */
-            }
-            finally
-            {
-                m_lock.unlock();
-            }
-            return null;
+            return acceptConnection( new SessionConnection(session) );
         }
 
         public void onAcceptorStarted( Collider collider, int localPort )
@@ -379,18 +884,13 @@ class Channel
                 if (m_stopLatch == null)
                 {
                     m_localPort = localPort;
-                    if (m_stateListener != null)
-                        updateStateLocked();
+                    m_peerCache.setLocalPort(m_name, localPort);
+                    if (m_broadcastDiscovery != null)
+                        m_broadcastDiscovery.advertise(m_name, localPort);
+                    updateStateLocked();
 
-                    /* Android NSD implementation is very unstable when services
-                     * registers with the same name. Will use "CHANNEL_NAME:DEVICE_ID:".
-                     */
                     final NsdServiceInfo serviceInfo = new NsdServiceInfo();
-                    final String serviceName =
-                            Base64.encodeToString(m_name.getBytes(), (Base64.NO_PADDING | Base64.NO_WRAP)) +
-                            WalkieService.SERVICE_NAME_SEPARATOR +
-                            m_deviceID +
-                            WalkieService.SERVICE_NAME_SEPARATOR;
+                    final String serviceName = createServiceName();
                     serviceInfo.setServiceType( m_serviceType );
                     serviceInfo.setServiceName( serviceName );
                     serviceInfo.setPort( localPort );
@@ -424,6 +924,28 @@ class Channel
         }
     }
 
+    Session.Listener acceptConnection( Connection connection )
+    {
+        /* Called for the accepted session,
+         * or for the talkgroup opened over the link by the remote side.
+         */
+        m_lock.lock();
+        try
+        {
+            if (m_stopLatch == null)
+            {
+                return new HandshakeServerSession(
+                        m_audioFormat, m_stationName, Channel.this, connection, m_sessionManager, m_timerQueue, m_pingInterval );
+            }
+            /* else channel is being stopped, just skip a new income connection. */
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        return null;
+    }
+
     private class ChannelConnector extends Connector
     {
         private final String m_serviceName;
@@ -455,10 +977,17 @@ class Channel
                         throw new AssertionError();
                     }
 
+                    final Connection connection = new SessionConnection(session);
                     serviceInfo.connector = null;
-                    serviceInfo.session = session;
-                    return new HandshakeClientSession(
-                            Channel.this, m_audioFormat, m_stationName, m_serviceName, session, m_sessionManager, m_timerQueue, m_pingInterval );
+                    serviceInfo.session = connection;
+                    serviceInfo.nsdUpdates = 0;
+                    final long resumptionToken = serviceInfo.resumptionToken;
+                    serviceInfo.resumptionToken = 0;
+                    final HandshakeClientSession handshakeSession = new HandshakeClientSession(
+                            Channel.this, m_audioFormat, m_stationName, m_serviceName, connection,
+                            m_sessionManager, m_timerQueue, m_pingInterval );
+                    handshakeSession.start( resumptionToken );
+                    return handshakeSession;
                 }
             }
             finally
@@ -471,6 +1000,7 @@ class Channel
         public void onException( IOException ex )
         {
             Log.i( LOG_TAG, m_name + ": exception [" + m_serviceName + "] " + getAddr() + ": " + ex.toString() );
+            AudioPlayer audioPlayer = null;
             m_lock.lock();
             try
             {
@@ -491,24 +1021,27 @@ class Channel
 
                     serviceInfo.connector = null;
 
+                    /* Station is not reachable at the last known address,
+                     * session can not be resumed.
+                     */
+                    audioPlayer = serviceInfo.audioPlayer;
+                    serviceInfo.audioPlayer = null;
+                    serviceInfo.resumptionToken = 0;
+                    serviceInfo.sockAddr = null;
+                    m_peerCache.onConnectFailed(m_serviceName);
+
                     if (m_stopLatch == null)
                     {
-                        if (serviceInfo.nsdServiceInfo == null)
+                        if (!isPresent(serviceInfo))
                         {
                             /* Service lost, let's remove record */
                             m_serviceInfo.remove( m_serviceName );
                         }
                         else if (serviceInfo.nsdUpdates > 0)
                         {
-                            /* NsdServiceInfo updated, let's try to resolve it */
-                            if (m_resolveListener == null)
-                            {
-                                /* let's try to resolve it once more */
-                                Log.i( LOG_TAG, m_name + ": onException: " + serviceInfo.nsdServiceInfo );
-                                serviceInfo.nsdUpdates = 0;
-                                m_resolveListener = new ResolveListener( m_serviceName );
-                                m_nsdManager.resolveService( serviceInfo.nsdServiceInfo, m_resolveListener );
-                            }
+                            /* NsdServiceInfo updated, let's try to resolve it once more */
+                            Log.i( LOG_TAG, m_name + ": onException: " + serviceInfo.nsdServiceInfo );
+                            resolveNextLocked();
                         }
                     }
                 }
@@ -517,27 +1050,25 @@ class Channel
             {
                 m_lock.unlock();
             }
+
+            if (audioPlayer != null)
+                audioPlayer.stopAndWait();
         }
     }
 
     private StationInfo [] getStationListLocked()
     {
         /* Lock is supposed to be held by current thread. */
-        if (BuildConfig.DEBUG)
-        {
-            if (!m_lock.isHeldByCurrentThread())
-                throw new AssertionError();
-
-            if (m_serviceName == null)
-                throw new AssertionError();
-        }
-        else if (m_serviceName == null)
-            return new StationInfo[0];
+        if (BuildConfig.DEBUG && !m_lock.isHeldByCurrentThread())
+            throw new AssertionError();
 
+        /* Service can be connected using cached address
+         * before own service registration.
+         */
         int sessions = 0;
         for (Map.Entry<String, ServiceInfo> e : m_serviceInfo.entrySet())
         {
-            if (m_serviceName.compareTo(e.getKey()) > 0)
+            if ((m_serviceName == null) || (m_serviceName.compareTo(e.getKey()) > 0))
             {
                 /* Show only services which are connected */
                 if (e.getValue().channelSession != null)
@@ -545,7 +1076,7 @@ class Channel
             }
         }
 
-        for (Map.Entry<Session, SessionInfo> e : m_sessions.entrySet())
+        for (Map.Entry<Connection, SessionInfo> e : m_sessions.entrySet())
         {
             if (e.getValue().stationName != null)
                 sessions++;
@@ -555,7 +1086,7 @@ class Channel
         int idx = 0;
         for (Map.Entry<String, ServiceInfo> e : m_serviceInfo.entrySet())
         {
-            if (m_serviceName.compareTo(e.getKey()) > 0)
+            if ((m_serviceName == null) || (m_serviceName.compareTo(e.getKey()) > 0))
             {
                 if (e.getValue().channelSession != null)
                 {
@@ -565,12 +1096,13 @@ class Channel
                             serviceInfo.addr,
                             serviceInfo.state,
                             serviceInfo.ping,
-                            serviceInfo.channelSession);
+                            serviceInfo.channelSession,
+                            0);
                 }
             }
         }
 
-        for (Map.Entry<Session, SessionInfo> e : m_sessions.entrySet())
+        for (Map.Entry<Connection, SessionInfo> e : m_sessions.entrySet())
         {
             final SessionInfo sessionInfo = e.getValue();
             if (sessionInfo.stationName != null)
@@ -580,74 +1112,380 @@ class Channel
                         sessionInfo.addr,
                         sessionInfo.state,
                         sessionInfo.ping,
-                        sessionInfo.channelSession);
+                        sessionInfo.channelSession,
+                        0);
             }
         }
 
         return stationInfo;
     }
 
+    private StationInfo updateStationLocked(
+            ChannelSession channelSession, String name, String addr, int state, long ping, int changes,
+            List<StationInfo> added, List<StationInfo> updated)
+    {
+        /* Only new or changed stations get a new StationInfo
+         * (and a link statistics snapshot), others are kept as is.
+         */
+        StationInfo stationInfo = m_stations.get(channelSession);
+        if (stationInfo == null)
+        {
+            stationInfo = new StationInfo(name, addr, state, ping, channelSession, 0);
+            m_stations.put(channelSession, stationInfo);
+            added.add(stationInfo);
+        }
+        else if (changes != 0)
+        {
+            stationInfo = new StationInfo(name, addr, state, ping, channelSession, changes);
+            m_stations.put(channelSession, stationInfo);
+            updated.add(stationInfo);
+        }
+        return stationInfo;
+    }
+
+    private void getStationListUpdateLocked(
+            List<StationInfo> added, List<Integer> addedPositions,
+            List<StationInfo> updated, List<ChannelSession> removed)
+    {
+        /* Same stations as getStationListLocked() returns,
+         * but as a difference with the list notified last time.
+         * Order is the same as well (services sorted by name,
+         * then incoming sessions), added stations come with
+         * their positions in the new list, ascending.
+         */
+        if (BuildConfig.DEBUG && !m_lock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        int present = 0;
+        int position = 0;
+        for (Map.Entry<String, ServiceInfo> e : m_serviceInfo.entrySet())
+        {
+            final ServiceInfo serviceInfo = e.getValue();
+            if ((serviceInfo.channelSession != null) &&
+                ((m_serviceName == null) || (m_serviceName.compareTo(e.getKey()) > 0)))
+            {
+                if (m_stations.containsKey(serviceInfo.channelSession))
+                    present++;
+                else
+                    addedPositions.add(position);
+                updateStationLocked(
+                        serviceInfo.channelSession,
+                        serviceInfo.stationName,
+                        serviceInfo.addr,
+                        serviceInfo.state,
+                        serviceInfo.ping,
+                        serviceInfo.changes,
+                        added, updated);
+                position++;
+            }
+            serviceInfo.changes = 0;
+        }
+
+        for (Map.Entry<Connection, SessionInfo> e : m_sessions.entrySet())
+        {
+            final SessionInfo sessionInfo = e.getValue();
+            if (sessionInfo.stationName != null)
+            {
+                if (m_stations.containsKey(sessionInfo.channelSession))
+                    present++;
+                else
+                    addedPositions.add(position);
+                updateStationLocked(
+                        sessionInfo.channelSession,
+                        sessionInfo.stationName,
+                        sessionInfo.addr,
+                        sessionInfo.state,
+                        sessionInfo.ping,
+                        sessionInfo.changes,
+                        added, updated);
+                position++;
+            }
+            sessionInfo.changes = 0;
+        }
+
+        if ((present + added.size()) < m_stations.size())
+        {
+            /* Some stations disappeared, rare enough to find them the long way. */
+            for (Map.Entry<String, ServiceInfo> e : m_serviceInfo.entrySet())
+            {
+                if (e.getValue().channelSession != null)
+                {
+                    if ((m_serviceName == null) || (m_serviceName.compareTo(e.getKey()) > 0))
+                        m_visibleStations.add(e.getValue().channelSession);
+                }
+            }
+
+            for (Map.Entry<Connection, SessionInfo> e : m_sessions.entrySet())
+            {
+                if (e.getValue().stationName != null)
+                    m_visibleStations.add(e.getValue().channelSession);
+            }
+
+            final Iterator<ChannelSession> it = m_stations.keySet().iterator();
+            while (it.hasNext())
+            {
+                final ChannelSession channelSession = it.next();
+                if (!m_visibleStations.contains(channelSession))
+                {
+                    it.remove();
+                    removed.add(channelSession);
+                }
+            }
+            m_visibleStations.clear();
+        }
+    }
+
+    private String getStateStringLocked()
+    {
+        String str = m_name;
+        if (m_localPort != -1)
+        {
+            str += ": ";
+            str += Integer.toString( m_localPort );
+        }
+        if (m_serviceName != null)
+        {
+            str += '\n';
+            str += m_serviceName;
+        }
+        return str;
+    }
+
+    /* Listener is notified by the event loop out of the lock,
+     * changes made before the notification runs are coalesced.
+     */
+    private class Notifier implements Runnable
+    {
+        public void run()
+        {
+            final StateListener stateListener;
+            String stateString = null;
+            boolean registered = false;
+            StationInfo [] added = null;
+            int [] addedPositions = null;
+            StationInfo [] updated = null;
+            ChannelSession [] removed = null;
+            int floorState = -1;
+
+            m_lock.lock();
+            try
+            {
+                m_notificationPosted = false;
+                stateListener = m_stateListener;
+                if (stateListener == null)
+                    return;
+
+                if (m_stateChanged)
+                {
+                    stateString = getStateStringLocked();
+                    registered = (m_serviceName != null);
+                    m_stateChanged = false;
+                }
+
+                if (m_stationListChanged)
+                {
+                    final ArrayList<StationInfo> addedList = new ArrayList<StationInfo>();
+                    final ArrayList<Integer> positionList = new ArrayList<Integer>();
+                    final ArrayList<StationInfo> updatedList = new ArrayList<StationInfo>();
+                    final ArrayList<ChannelSession> removedList = new ArrayList<ChannelSession>();
+                    getStationListUpdateLocked(addedList, positionList, updatedList, removedList);
+                    if (!addedList.isEmpty() || !updatedList.isEmpty() || !removedList.isEmpty())
+                    {
+                        added = addedList.toArray(new StationInfo[addedList.size()]);
+                        addedPositions = new int[positionList.size()];
+                        for (int idx=0; idx<addedPositions.length; idx++)
+                            addedPositions[idx] = positionList.get(idx);
+                        updated = updatedList.toArray(new StationInfo[updatedList.size()]);
+                        removed = removedList.toArray(new ChannelSession[removedList.size()]);
+                    }
+                    m_stationListChanged = false;
+                }
+
+                if (m_floorStateChanged)
+                {
+                    floorState = m_floorControl.getFloorState();
+                    m_floorStateChanged = false;
+                }
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            if (stateString != null)
+                stateListener.onStateChanged( stateString, registered );
+            if (added != null)
+                stateListener.onStationListChanged( added, addedPositions, updated, removed );
+            if (floorState >= 0)
+                stateListener.onFloorStateChanged( floorState );
+        }
+    }
+
+    private void postNotificationLocked()
+    {
+        if (BuildConfig.DEBUG && !m_lock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        if ((m_stateListener != null) && !m_notificationPosted)
+        {
+            m_notificationPosted = true;
+            m_eventLoop.post( m_notifier );
+        }
+    }
+
     private void updateStateLocked()
     {
-        final StateListener stateListener = m_stateListener;
-        if (stateListener != null)
+        m_stateChanged = true;
+        postNotificationLocked();
+    }
+
+    private void notifyStationListChangedLocked()
+    {
+        m_stationListChanged = true;
+        postNotificationLocked();
+    }
+
+    private void notifyStationChangedLocked(ServiceInfo serviceInfo, int changes)
+    {
+        serviceInfo.changes |= changes;
+        notifyStationListChangedLocked();
+    }
+
+    private void notifyStationChangedLocked(SessionInfo sessionInfo, int changes)
+    {
+        sessionInfo.changes |= changes;
+        notifyStationListChangedLocked();
+    }
+
+    Channel(
+            String deviceID,
+            String stationName,
+            String audioFormat,
+            Collider collider,
+            NsdManager nsdManager,
+            String serviceType,
+            String name,
+            SessionManager sessionManager,
+            TimerQueue timerQueue,
+            TimingWheel timingWheel,
+            int pingInterval,
+            PeerCache peerCache,
+            BroadcastDiscovery broadcastDiscovery,
+            LinkManager linkManager,
+            Scanner scanner)
+    {
+        m_deviceID = deviceID;
+        m_stationName = stationName;
+        m_audioFormat = audioFormat;
+        m_collider = collider;
+        m_nsdManager = nsdManager;
+        m_serviceType = serviceType;
+        m_name = name;
+        m_sessionManager = sessionManager;
+        m_timerQueue = timerQueue;
+        m_timingWheel = timingWheel;
+        m_pingInterval = pingInterval;
+        m_peerCache = peerCache;
+        m_broadcastDiscovery = broadcastDiscovery;
+        m_linkManager = linkManager;
+        m_scanner = scanner;
+        m_serviceInfo = new TreeMap<String, ServiceInfo>();
+        m_sessions = new LinkedHashMap<Connection, SessionInfo>();
+        m_lock = new ReentrantLock();
+        m_eventLoop = new EventLoop(LOG_TAG + " [" + name + "]");
+        m_notifier = new Notifier();
+        m_stations = new HashMap<ChannelSession, StationInfo>();
+        m_visibleStations = new HashSet<ChannelSession>();
+        m_resolveListeners = new HashMap<String, ResolveListener>();
+        m_resolveTimer = new ResolveTimer();
+        m_resolveLimit = Config.RESOLVE_CONCURRENCY;
+        m_random = new SecureRandom();
+        m_parkedSessions = new HashMap<Long, ParkedSession>();
+        m_membership = new Membership(name + ": ", Config.GOSSIP_INTERVAL);
+        m_gossipTimer = new GossipTimer();
+        m_floorControl = new FloorControl(this, timerQueue);
+        sessionManager.setFloorControl(m_floorControl);
+
+        m_localPort = -1;
+
+        final int localPort = peerCache.getLocalPort(name);
+        if (localPort > 0)
         {
-            boolean registered;
-            String str = m_name;
-            if (m_localPort != -1)
+            /* Try to listen the same port as before,
+             * then other stations can reach us using cached address.
+             */
+            m_acceptor = new ChannelAcceptor( new InetSocketAddress(localPort) );
+            try
             {
-                str += ": ";
-                str += Integer.toString( m_localPort );
+                m_collider.addAcceptor( m_acceptor );
             }
-            if (m_serviceName != null)
+            catch (final IOException ex)
             {
-                str += '\n';
-                str += m_serviceName;
-                registered = true;
+                Log.d( LOG_TAG, m_name + ": port " + localPort + ": " + ex.toString() );
+                m_acceptor = null;
             }
-            else
-                registered = false;
-            stateListener.onStateChanged( str, registered );
         }
+
+        if (m_acceptor == null)
+        {
+            m_acceptor = new ChannelAcceptor();
+            try
+            {
+                m_collider.addAcceptor( m_acceptor );
+            }
+            catch (final IOException ex)
+            {
+                Log.d( LOG_TAG, ex.toString() );
+                m_acceptor = null;
+            }
+        }
+
+        if (m_acceptor != null)
+        {
+            m_lock.lock();
+            try
+            {
+                connectCachedPeersLocked();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            m_timerQueue.schedule(m_gossipTimer, Config.GOSSIP_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String createServiceName(String channelName, String deviceID)
+    {
+        /* Android NSD implementation is very unstable when services
+         * registers with the same name. Will use "CHANNEL_NAME:DEVICE_ID:".
+         */
+        return Base64.encodeToString(channelName.getBytes(), (Base64.NO_PADDING | Base64.NO_WRAP)) +
+                WalkieService.SERVICE_NAME_SEPARATOR +
+                deviceID +
+                WalkieService.SERVICE_NAME_SEPARATOR;
+    }
+
+    private String createServiceName()
+    {
+        return createServiceName(m_name, m_deviceID);
+    }
+
+    static String getDeviceID(String serviceName)
+    {
+        final String [] ss = serviceName.split(WalkieService.SERVICE_NAME_SEPARATOR);
+        return ((ss.length > 1) ? ss[1] : serviceName);
     }
 
-    Channel(
-            String deviceID,
-            String stationName,
-            String audioFormat,
-            Collider collider,
-            NsdManager nsdManager,
-            String serviceType,
-            String name,
-            SessionManager sessionManager,
-            TimerQueue timerQueue,
-            int pingInterval)
+    LinkManager getLinkManager()
     {
-        m_deviceID = deviceID;
-        m_stationName = stationName;
-        m_audioFormat = audioFormat;
-        m_collider = collider;
-        m_nsdManager = nsdManager;
-        m_serviceType = serviceType;
-        m_name = name;
-        m_sessionManager = sessionManager;
-        m_timerQueue = timerQueue;
-        m_pingInterval = pingInterval;
-        m_serviceInfo = new TreeMap<String, ServiceInfo>();
-        m_sessions = new LinkedHashMap<Session, SessionInfo>();
-        m_lock = new ReentrantLock();
+        return m_linkManager;
+    }
 
-        m_acceptor = new ChannelAcceptor();
-        m_localPort = -1;
-        try
-        {
-            m_collider.addAcceptor( m_acceptor );
-        }
-        catch (final IOException ex)
-        {
-            Log.d( LOG_TAG, ex.toString() );
-            m_acceptor = null;
-        }
+    Scanner getScanner()
+    {
+        return m_scanner;
     }
 
     void setStateListener(StateListener stateListener)
@@ -656,12 +1494,12 @@ class Channel
         try
         {
             m_stateListener = stateListener;
-            if (stateListener != null)
-            {
-                updateStateLocked();
-                if (m_serviceName != null)
-                    stateListener.onStationListChanged( getStationListLocked() );
-            }
+            m_stateChanged = true;
+            m_stationListChanged = true;
+            /* New listener gets all stations as added */
+            m_stations.clear();
+            m_floorStateChanged = true;
+            postNotificationLocked();
         }
         finally
         {
@@ -669,21 +1507,32 @@ class Channel
         }
     }
 
-    void onServiceFound(NsdServiceInfo nsdServiceInfo)
+    void onServiceFound(final NsdServiceInfo nsdServiceInfo)
     {
         /* Run in the NSD manager thread */
+        m_eventLoop.post( new Runnable() {
+            public void run() {
+                handleServiceFound( nsdServiceInfo );
+            }
+        });
+    }
+
+    private void handleServiceFound(NsdServiceInfo nsdServiceInfo)
+    {
         final String serviceName = nsdServiceInfo.getServiceName();
 
         m_lock.lock();
         try
         {
-            if (BuildConfig.DEBUG && (m_stopLatch != null))
-                throw new AssertionError();
+            /* Can be posted just before the stop */
+            if (m_stopLatch != null)
+                return;
 
             ServiceInfo serviceInfo = m_serviceInfo.get(serviceName);
             if (serviceInfo == null)
             {
                 serviceInfo = new ServiceInfo();
+                serviceInfo.sockAddr = m_peerCache.get(serviceName);
                 m_serviceInfo.put(serviceName, serviceInfo);
             }
             /* Local services will appear one time for each network interface.
@@ -703,21 +1552,8 @@ class Channel
                 if ((serviceInfo.session == null) &&
                     (serviceInfo.connector == null))
                 {
-                    if (m_resolveListener == null)
-                    {
-                        Log.i(LOG_TAG, m_name + ": onServiceFound, resolve: " + nsdServiceInfo);
-                        serviceInfo.nsdUpdates = 0;
-                        m_resolveListener = new ResolveListener( serviceName );
-                        m_nsdManager.resolveService( nsdServiceInfo, m_resolveListener );
-                    }
-                    else
-                    {
-                        /* Another service is being resolved right now,
-                         * will try to resolve new service when current resolve
-                         * operation will finish or fail.
-                         */
-                        Log.i(LOG_TAG, m_name + ": onServiceFound: " + nsdServiceInfo);
-                    }
+                    Log.i(LOG_TAG, m_name + ": onServiceFound: " + nsdServiceInfo);
+                    connectLocked(serviceName, serviceInfo);
                 }
             }
         }
@@ -727,14 +1563,71 @@ class Channel
         }
     }
 
-    void onServiceLost(NsdServiceInfo nsdServiceInfo)
+    private String getLocalServiceNameLocked()
+    {
+        /* Own service name is known only after registration,
+         * but we can connect to the stations before.
+         */
+        return (m_serviceName == null) ? createServiceName() : m_serviceName;
+    }
+
+    private AudioPlayer removeLostServiceLocked(String serviceName, ServiceInfo serviceInfo)
+    {
+        /* Called when service disappeared from the NSD or from the broadcast discovery,
+         * returns an audio player kept to resume the session which should be stopped.
+         */
+        if (isPresent(serviceInfo))
+            return null;
+
+        if (getLocalServiceNameLocked().compareTo(serviceName) > 0)
+        {
+            /* Had to connect to the service */
+            if (m_resolveListeners.containsKey(serviceName) ||
+                (serviceInfo.connector != null) ||
+                (serviceInfo.session != null))
+            {
+                /* There is still some activity with this service,
+                 * let's keep it while all tasks will not be done.
+                 */
+                return null;
+            }
+
+            m_serviceInfo.remove( serviceName );
+
+            if (m_serviceName != null)
+                notifyStationListChangedLocked();
+
+            return serviceInfo.audioPlayer;
+        }
+        else
+        {
+            /* Remove it from the m_serviceInfo, but do not update activity view. */
+            m_serviceInfo.remove( serviceName );
+            return null;
+        }
+    }
+
+    void onServiceLost(final NsdServiceInfo nsdServiceInfo)
     {
         /* Run in the NSD manager thread */
+        m_eventLoop.post( new Runnable() {
+            public void run() {
+                handleServiceLost( nsdServiceInfo );
+            }
+        });
+    }
+
+    private void handleServiceLost(NsdServiceInfo nsdServiceInfo)
+    {
         final String serviceName = nsdServiceInfo.getServiceName();
+        AudioPlayer audioPlayer = null;
 
         m_lock.lock();
         try
         {
+            if (m_stopLatch != null)
+                return;
+
             final ServiceInfo serviceInfo = m_serviceInfo.get( serviceName );
             if (serviceInfo == null)
             {
@@ -743,41 +1636,108 @@ class Channel
                  */
                 Log.w( LOG_TAG, m_name + ": internal error: service not found: " + nsdServiceInfo );
             }
-            else if ((m_serviceName != null) &&
-                     (m_serviceName.compareTo(serviceName) > 0))
+            else
             {
-                /* Had to connect to the service */
-                if (((m_resolveListener != null) && m_resolveListener.getServiceName().equals(serviceName)) ||
-                    (serviceInfo.connector != null) ||
-                    (serviceInfo.session != null))
-                {
-                    /* There is still some activity with this service,
-                     * let's keep it while all tasks will not be done.
-                     */
-                    serviceInfo.nsdServiceInfo = null;
-                }
-                else
-                {
-                    m_serviceInfo.remove( serviceName );
+                serviceInfo.nsdServiceInfo = null;
+                audioPlayer = removeLostServiceLocked( serviceName, serviceInfo );
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged( getStationListLocked() );
-                }
+        if (audioPlayer != null)
+            audioPlayer.stopAndWait();
+    }
+
+    void onBeaconFound(final String deviceID, final InetSocketAddress addr)
+    {
+        /* Run in the broadcast discovery thread for each beacon received */
+        m_eventLoop.post( new Runnable() {
+            public void run() {
+                handleBeaconFound( deviceID, addr );
             }
-            else
+        });
+    }
+
+    private void handleBeaconFound(String deviceID, InetSocketAddress addr)
+    {
+        final String serviceName = createServiceName( m_name, deviceID );
+
+        m_lock.lock();
+        try
+        {
+            if (m_stopLatch != null)
+                return;
+
+            ServiceInfo serviceInfo = m_serviceInfo.get( serviceName );
+            if (serviceInfo == null)
+            {
+                serviceInfo = new ServiceInfo();
+                m_serviceInfo.put( serviceName, serviceInfo );
+            }
+
+            if (!addr.equals(serviceInfo.beaconAddr))
+            {
+                Log.i( LOG_TAG, m_name + ": onBeaconFound: [" + serviceName + "] " + addr );
+                serviceInfo.beaconAddr = addr;
+            }
+
+            if ((getLocalServiceNameLocked().compareTo(serviceName) > 0) &&
+                (serviceInfo.connector == null) &&
+                (serviceInfo.session == null) &&
+                !m_resolveListeners.containsKey(serviceName))
+            {
+                /* Beacon already contains an address, no need to resolve */
+                serviceInfo.sockAddr = addr;
+                connectLocked( serviceName, serviceInfo );
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void onBeaconLost(final String deviceID)
+    {
+        m_eventLoop.post( new Runnable() {
+            public void run() {
+                handleBeaconLost( deviceID );
+            }
+        });
+    }
+
+    private void handleBeaconLost(String deviceID)
+    {
+        final String serviceName = createServiceName( m_name, deviceID );
+        AudioPlayer audioPlayer = null;
+
+        m_lock.lock();
+        try
+        {
+            if (m_stopLatch != null)
+                return;
+
+            final ServiceInfo serviceInfo = m_serviceInfo.get( serviceName );
+            if (serviceInfo != null)
             {
-                /* Remove it from the m_serviceInfo, but do not update activity view. */
-                m_serviceInfo.remove( serviceName );
+                Log.i( LOG_TAG, m_name + ": onBeaconLost: [" + serviceName + "]" );
+                serviceInfo.beaconAddr = null;
+                audioPlayer = removeLostServiceLocked( serviceName, serviceInfo );
             }
         }
         finally
         {
             m_lock.unlock();
         }
+
+        if (audioPlayer != null)
+            audioPlayer.stopAndWait();
     }
 
-    void addSession(Session session, ChannelSession channelSession, String stationName)
+    void addSession(Connection session, ChannelSession channelSession, String stationName)
     {
         /* Called by the server session channel
          * when received a login request with a client station name.
@@ -792,9 +1752,7 @@ class Channel
                 sessionInfo = new SessionInfo(channelSession, addr, stationName);
                 m_sessions.put(session, sessionInfo);
 
-                final StateListener stateListener = m_stateListener;
-                if (stateListener != null)
-                    stateListener.onStationListChanged(getStationListLocked());
+                notifyStationListChangedLocked();
             }
             else
             {
@@ -809,7 +1767,7 @@ class Channel
         }
     }
 
-    void setStationName(String serviceName, Session session, String stationName)
+    void setStationName(String serviceName, Connection session, String stationName)
     {
         Log.d(LOG_TAG, session.getRemoteAddress().toString() +
             ": serviceName=" + ((serviceName == null) ? "<null>" : serviceName) +
@@ -831,9 +1789,7 @@ class Channel
                 {
                     sessionInfo.stationName = stationName;
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationChangedLocked(sessionInfo, StationInfo.CHANGED_NAME);
                 }
             }
             else
@@ -844,9 +1800,7 @@ class Channel
                 {
                     serviceInfo.stationName = stationName;
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationChangedLocked(serviceInfo, StationInfo.CHANGED_NAME);
                 }
                 else
                 {
@@ -879,9 +1833,10 @@ class Channel
                 serviceInfo.state = 0;
                 serviceInfo.ping = 0;
 
-                final StateListener stateListener = m_stateListener;
-                if (stateListener != null)
-                    stateListener.onStationListChanged(getStationListLocked());
+                if (serviceInfo.sockAddr != null)
+                    m_peerCache.put(serviceName, serviceInfo.sockAddr);
+
+                notifyStationListChangedLocked();
             }
             else
             {
@@ -908,12 +1863,12 @@ class Channel
             for (Map.Entry<String, ServiceInfo> entry : m_serviceInfo.entrySet())
             {
                 final ServiceInfo serviceInfo = entry.getValue();
-                final Session session = serviceInfo.session;
+                final Connection session = serviceInfo.session;
                 if (session != null)
                     session.sendData(msg);
             }
 
-            for (Session session : m_sessions.keySet())
+            for (Connection session : m_sessions.keySet())
                 session.sendData(msg);
 
             msg.release();
@@ -928,7 +1883,7 @@ class Channel
         }
     }
 
-    void setSessionState(String serviceName, Session session, int state)
+    void setSessionState(String serviceName, Connection session, int state)
     {
         m_lock.lock();
         try
@@ -944,9 +1899,7 @@ class Channel
 
                     sessionInfo.state = state;
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationChangedLocked(sessionInfo, StationInfo.CHANGED_STATE);
                 }
                 /* else session can be already closed and removed */
             }
@@ -961,9 +1914,7 @@ class Channel
 
                     serviceInfo.state = state;
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationChangedLocked(serviceInfo, StationInfo.CHANGED_STATE);
                 }
                 /* else session can be already closed and removed */
             }
@@ -974,7 +1925,7 @@ class Channel
         }
     }
 
-    void setPing(String serviceName, Session session, long ping)
+    void setPing(String serviceName, Connection session, long ping)
     {
         m_lock.lock();
         try
@@ -992,9 +1943,7 @@ class Channel
                 else
                 {
                     sessionInfo.ping = ping;
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationChangedLocked(sessionInfo, StationInfo.CHANGED_PING);
                 }
             }
             else
@@ -1005,9 +1954,7 @@ class Channel
                 {
                     serviceInfo.ping = ping;
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationChangedLocked(serviceInfo, StationInfo.CHANGED_PING);
                 }
                 else
                 {
@@ -1023,8 +1970,90 @@ class Channel
         }
     }
 
-    void removeSession(String serviceName, Session session)
+    long createResumptionToken()
+    {
+        m_lock.lock();
+        try
+        {
+            long token;
+            do
+            {
+                token = m_random.nextLong();
+            }
+            while ((token == 0) || m_parkedSessions.containsKey(token));
+            return token;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    ParkedSession resumeSession(long resumptionToken)
+    {
+        /* Called by the server session when ResumeRequest received,
+         * returns null if session is unknown or expired.
+         */
+        ParkedSession parkedSession;
+        m_lock.lock();
+        try
+        {
+            if (m_stopLatch != null)
+                return null;
+            parkedSession = m_parkedSessions.remove(resumptionToken);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (parkedSession != null)
+        {
+            /* Can not cancel timer under the lock,
+             * timer handler acquires the lock as well.
+             */
+            try
+            {
+                m_timerQueue.cancel(parkedSession);
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w(LOG_TAG, ex.toString(), ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+        return parkedSession;
+    }
+
+    AudioPlayer takeAudioPlayer(String serviceName)
+    {
+        /* Called by the client session to reuse the audio player
+         * of the resumed session.
+         */
+        m_lock.lock();
+        try
+        {
+            final ServiceInfo serviceInfo = m_serviceInfo.get(serviceName);
+            if (serviceInfo == null)
+                return null;
+            final AudioPlayer audioPlayer = serviceInfo.audioPlayer;
+            serviceInfo.audioPlayer = null;
+            return audioPlayer;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void removeSession(String serviceName, Connection session, long resumptionToken, AudioPlayer audioPlayer)
     {
+        /* Audio player is kept for a while if session can be resumed,
+         * stopped otherwise.
+         */
+        ParkedSession parkedSession = null;
+        AudioPlayer stopAudioPlayer = audioPlayer;
+
         m_lock.lock();
         try
         {
@@ -1040,9 +2069,14 @@ class Channel
                 }
                 else
                 {
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    if ((resumptionToken != 0) && (m_stopLatch == null))
+                    {
+                        parkedSession = new ParkedSession(resumptionToken, sessionInfo.stationName, audioPlayer);
+                        m_parkedSessions.put(resumptionToken, parkedSession);
+                        stopAudioPlayer = null;
+                    }
+
+                    notifyStationListChangedLocked();
                 }
             }
             else
@@ -1062,7 +2096,7 @@ class Channel
                         throw new AssertionError();
                     */
 
-                    if (serviceInfo.nsdServiceInfo == null)
+                    if (!isPresent(serviceInfo))
                     {
                         /* Service disappeared earlier,
                          * now session is closed and we can forget it.
@@ -1077,11 +2111,28 @@ class Channel
                         serviceInfo.addr = null;
                         serviceInfo.state = 0;
                         serviceInfo.ping = 0;
+
+                        if ((resumptionToken != 0) &&
+                            (serviceInfo.sockAddr != null) &&
+                            (serviceInfo.connector == null) &&
+                            (m_stopLatch == null))
+                        {
+                            /* Reconnect to the last known address at once,
+                             * without waiting for the service discovery.
+                             */
+                            Log.i(LOG_TAG, m_name + ": resume session [" + serviceName + "] " + serviceInfo.sockAddr);
+                            serviceInfo.resumptionToken = resumptionToken;
+                            serviceInfo.audioPlayer = audioPlayer;
+                            if (!openChannelLocked(serviceName, serviceInfo))
+                            {
+                                serviceInfo.connector = new ChannelConnector(serviceInfo.sockAddr, serviceName);
+                                m_collider.addConnector(serviceInfo.connector);
+                            }
+                            stopAudioPlayer = null;
+                        }
                     }
 
-                    final StateListener stateListener = m_stateListener;
-                    if (stateListener != null)
-                        stateListener.onStationListChanged(getStationListLocked());
+                    notifyStationListChangedLocked();
                 }
             }
         }
@@ -1089,10 +2140,22 @@ class Channel
         {
             m_lock.unlock();
         }
+
+        if (parkedSession != null)
+            m_timerQueue.schedule(parkedSession, Config.RESUME_TIMEOUT, TimeUnit.SECONDS);
+
+        if (stopAudioPlayer != null)
+            stopAudioPlayer.stopAndWait();
     }
 
     void stop(CountDownLatch stopLatch)
     {
+        final ArrayList<AudioPlayer> audioPlayers = new ArrayList<AudioPlayer>();
+        final ArrayList<ParkedSession> parkedSessions = new ArrayList<ParkedSession>();
+
+        if (m_broadcastDiscovery != null)
+            m_broadcastDiscovery.withdraw(m_name);
+
         m_lock.lock();
         try
         {
@@ -1126,7 +2189,8 @@ class Channel
             }
 
             /* Discovery is stopped now,
-             * onServiceFound()/onServiceLost() will not be called any more.
+             * onServiceFound()/onServiceLost() will not be called any more,
+             * events already posted to the event loop will be ignored.
              */
             final Iterator<Map.Entry<String, ServiceInfo>> it = m_serviceInfo.entrySet().iterator();
             while (it.hasNext())
@@ -1134,27 +2198,120 @@ class Channel
                 final Map.Entry<String, ServiceInfo> entry = it.next();
                 final String serviceName = entry.getKey();
                 final ServiceInfo serviceInfo = entry.getValue();
-                if (((m_resolveListener != null) && m_resolveListener.getServiceName().equals(serviceName)) ||
+                if (serviceInfo.audioPlayer != null)
+                {
+                    audioPlayers.add(serviceInfo.audioPlayer);
+                    serviceInfo.audioPlayer = null;
+                }
+
+                if (m_resolveListeners.containsKey(serviceName) ||
                     (serviceInfo.connector != null) ||
                     (serviceInfo.session != null))
                 {
                     serviceInfo.nsdServiceInfo = null;
+                    serviceInfo.beaconAddr = null;
                 }
                 else
                     it.remove();
             }
 
-            if (m_resolveListener == null)
+            if (m_resolveListeners.isEmpty())
                 stopLatch.countDown();
+
+            parkedSessions.addAll(m_parkedSessions.values());
+            m_parkedSessions.clear();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        boolean interrupted = false;
+        try
+        {
+            m_timerQueue.cancel(m_gossipTimer);
+            m_floorControl.stop();
+        }
+        catch (final InterruptedException ex)
+        {
+            Log.w(LOG_TAG, ex.toString(), ex);
+            interrupted = true;
+        }
+
+        final RetainableByteBuffer gossipMsg;
+        m_lock.lock();
+        try
+        {
+            gossipMsg = m_gossipMsg;
+            m_gossipMsg = null;
         }
         finally
         {
             m_lock.unlock();
         }
+        if (gossipMsg != null)
+            gossipMsg.release();
+
+        for (ParkedSession parkedSession : parkedSessions)
+        {
+            try
+            {
+                m_timerQueue.cancel(parkedSession);
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w(LOG_TAG, ex.toString(), ex);
+                interrupted = true;
+            }
+            audioPlayers.add(parkedSession.audioPlayer);
+        }
+
+        for (AudioPlayer audioPlayer : audioPlayers)
+            audioPlayer.stopAndWait();
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    void stopEventLoop()
+    {
+        /* Called when the collider is stopped,
+         * nothing can post events any more.
+         */
+        m_eventLoop.stopAndWait();
     }
 
     public final String getName()
     {
         return m_name;
     }
+
+    SessionManager getSessionManager()
+    {
+        return m_sessionManager;
+    }
+
+    TimingWheel getTimingWheel()
+    {
+        return m_timingWheel;
+    }
+
+    FloorControl getFloorControl()
+    {
+        return m_floorControl;
+    }
+
+    void onFloorStateChanged()
+    {
+        m_lock.lock();
+        try
+        {
+            m_floorStateChanged = true;
+            postNotificationLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
 }
@@ -25,10 +25,14 @@ import org.jsl.collider.StreamDefragger;
 import org.jsl.collider.TimerQueue;
 
 import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class ChannelSession implements Session.Listener
 {
@@ -36,84 +40,357 @@ public class ChannelSession implements Session.Listener
     private static final int PING_TIME_BUFFER_SIZE = 8;
     private static final long PING_THRESHOLD = 10;
 
+    /* Maximum amount of data sent to the session but not confirmed yet
+     * by the remote side, audio frames exceeding the limit are dropped.
+     */
+    private static final long MAX_SEND_BACKLOG = (64 * 1024);
+
+    /* Emergency transmission is sent while the normal one is dropped,
+     * the receiver discards the audio queued before it anyway.
+     */
+    private static final long MAX_PRIORITY_SEND_BACKLOG = (MAX_SEND_BACKLOG * 2);
+
+    private static final int BATCH_NONE = 0;
+    private static final int BATCH_SEND = 1;
+    private static final int BATCH_SKIP = 2;
+
+    /* Audio quality is reduced to the half sample rate
+     * when the link to the station becomes weak,
+     * and restored when the link is good during some time.
+     */
+    private static final long DOWNGRADE_SEND_BACKLOG = (MAX_SEND_BACKLOG / 4);
+    private static final long DOWNGRADE_PING = 150;
+    private static final long UPGRADE_SEND_BACKLOG = (MAX_SEND_BACKLOG / 16);
+    private static final long UPGRADE_PING = 50;
+    private static final int UPGRADE_FRAMES = 10;
+
+    /* Silent peer is given up after this number of base keepalive
+     * intervals at most, whatever the detector says, so the stretched
+     * keepalive does not make the failure detection slower
+     * than with the fixed interval and 10 missed pings.
+     */
+    private static final int MAX_SILENT_INTERVALS = 10;
+
+    /* Clock offset is estimated with a few quick ClockPings after
+     * the session start, and then refreshed once in a while
+     * to follow the clock drift.
+     */
+    private static final long CLOCK_PING_INTERVAL = 250; /* milliseconds */
+    private static final long CLOCK_SYNC_INTERVAL = 30000; /* milliseconds */
+
+    /* Recovery copy of the dropped frame is sent at 1/4 of the sample rate */
+    private static final int RECOVERY_RATE_SHIFT = 2;
+
+    private static final int FRAME_SEND = 0;
+    private static final int FRAME_SEND_BATCH_START = 1;
+    private static final int FRAME_DROP = 2;
+
     private static final AtomicIntegerFieldUpdater<ChannelSession>
-            s_totalBytesReceivedUpdater = AtomicIntegerFieldUpdater.newUpdater(
-                    ChannelSession.class, "m_totalBytesReceived");
+            s_pingIdUpdater = AtomicIntegerFieldUpdater.newUpdater(
+                    ChannelSession.class, "m_pingId");
+
+    private static final AtomicLongFieldUpdater<ChannelSession>
+            s_keepaliveIntervalUpdater = AtomicLongFieldUpdater.newUpdater(
+                    ChannelSession.class, "m_keepaliveInterval");
+
+    private static final AtomicLongFieldUpdater<ChannelSession>
+            s_bytesSentUpdater = AtomicLongFieldUpdater.newUpdater(
+                    ChannelSession.class, "m_bytesSent");
+
+    private static final AtomicReferenceFieldUpdater<ChannelSession, RetainableByteBuffer>
+            s_lostFrameUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    ChannelSession.class, RetainableByteBuffer.class, "m_lostFrame");
 
     private final Channel m_channel;
     private final String m_serviceName;
-    private final Session m_session;
+    private final Connection m_session;
     private final StreamDefragger m_streamDefragger;
     private final SessionManager m_sessionManager;
     private final AudioPlayer m_audioPlayer;
     private final TimerQueue m_timerQueue;
+    private final TimingWheel m_timingWheel;
+    private final long m_resumptionToken;
+
+    /* Link is created for the session shared with other talkgroups
+     * (FEATURE_MUX negotiated and the session is not a talkgroup
+     * multiplexed over another session itself).
+     */
+    private final Link m_link;
+
+    /* Null if FEATURE_FLOOR is not negotiated */
+    private final FloorControl m_floorControl;
+
     private TimerHandler m_timerHandler;
+    private boolean m_batchOpen;
+
+    /* Audio player batch is open, can be different from m_batchOpen
+     * when the talkgroup is not selected by the scanner.
+     */
+    private boolean m_playing;
+
+    /* Used only if the FEATURE_BATCH is negotiated,
+     * m_controlBatch is accessed by the collider thread only,
+     * m_audioBatch is accessed by the audio recorder thread only.
+     */
+    private final Protocol.Batch.Writer m_controlBatch;
+    private final Protocol.Batch.Writer m_audioBatch;
+    private final Protocol.Batch.Reader m_batchReader;
+    private final boolean m_gossip;
+    private final boolean m_gossipTimer; /* own gossip or of the link talkgroups */
+
+    /* Failure detection: separate detectors for the periods when
+     * the remote station sends audio frames and when it is idle
+     * and only keepalive pings (or pongs) are expected, interval
+     * between the last audio frame and the next ping does not belong
+     * to any of them. When idle we receive something every keepalive
+     * interval of either side, whichever is shorter, idle detector
+     * is restarted when any side changes its interval.
+     * m_lastReceiveTime, m_expectAudio, m_peerKeepaliveInterval
+     * and m_idleInterval are updated by the collider thread only.
+     */
+    private final FailureDetector m_idleDetector;
+    private final FailureDetector m_audioDetector;
+    private volatile long m_lastReceiveTime;
+    private volatile boolean m_expectAudio;
+    private boolean m_skipSample;
+    private volatile long m_peerKeepaliveInterval;
+    private long m_idleInterval;
+
+    /* Keepalive: ping is sent only if nothing else was sent
+     * to the session during the keepalive interval. If FEATURE_KEEPALIVE
+     * is negotiated the interval doubles with each keepalive ping
+     * up to Config.PING_INTERVAL_MAX, returns to the base interval
+     * when any side starts a transmission and is announced
+     * to the remote side. m_announcedInterval is accessed
+     * by the timer thread only.
+     */
+    private final boolean m_adaptiveKeepalive;
+    private final long m_baseKeepaliveInterval;
+    private volatile long m_keepaliveInterval;
+    private long m_announcedInterval;
+    private volatile long m_lastSendTime;
+    private long m_gossipTime; /* timer thread only */
+
+    private volatile int m_pingId;
+    private final long [] m_pingSendTime; /* nanoseconds */
+    private final long [] m_pingBytesSent;
+    private volatile long m_ping;
+    private final LinkStats m_linkStats;
+
+    /* Used only if the FEATURE_CLOCK_SYNC is negotiated,
+     * m_receiveClock is a ClockSync time of the last data receive
+     * (collider thread only), m_clockPings and m_clockPingTime
+     * are accessed by the timer thread only.
+     */
+    private final ClockSync m_clockSync;
+    private long m_receiveClock;
+    private int m_clockPings;
+    private long m_clockPingTime;
 
-    private volatile int m_totalBytesReceived;
-    private int m_lastBytesReceived;
-    private int m_pingTimeouts;
-    private int m_pingId;
-    private long [] m_pingSendTime;
-    private long m_ping;
+    /* m_bytesSent is updated by any thread sending data to the session,
+     * m_bytesAcked is updated by the collider thread only
+     * when the Pong for a ping is received, so the difference is
+     * an amount of data still queued or being in flight.
+     */
+    private volatile long m_bytesSent;
+    private volatile long m_bytesAcked;
+    private volatile int m_probePingId;
 
-    private boolean m_sendAudio;
+    /* Accessed by the audio recorder thread only */
+    private int m_batchState;
+    private int m_framesDropped;
+    private boolean m_halfRate;
+    private int m_goodFrames;
+    private int m_framesRecovered;
 
-    private String getLogPrefix()
+    /* Last dropped audio frame, set by the audio recorder thread.
+     * Recorder can still send a frame to the session while it is
+     * being closed, so the frame is always taken with getAndSet(),
+     * and the one who takes it releases it.
+     */
+    private volatile RetainableByteBuffer m_lostFrame;
+    private volatile boolean m_closed;
+
+    /* Positions in the SessionManager routing sets,
+     * accessed under the SessionManager lock only.
+     */
+    private final int [] m_routeSlots;
+
+    String getLogPrefix()
     {
         return m_channel.getName() + " " + m_session.getRemoteAddress() + ": ";
     }
 
-    private class TimerHandler implements TimerQueue.Task
+    private class TimerHandler extends TimingWheel.Timer
     {
-        private final long m_interval;
-
-        TimerHandler(long interval)
+        long run()
         {
-            m_interval = interval;
+            return handleTimer();
         }
+    }
 
-        public long run()
+    private long handleTimer()
+    {
+        final long currentTime = System.currentTimeMillis();
+        final long elapsed = (currentTime - m_lastReceiveTime);
+        final FailureDetector detector = (m_expectAudio ? m_audioDetector : m_idleDetector);
+        final double phi = detector.getPhi(elapsed);
+        final long maxSilence = (m_baseKeepaliveInterval * MAX_SILENT_INTERVALS);
+        if ((phi > Config.FAILURE_PHI_THRESHOLD) || (elapsed > maxSilence))
         {
-            handlePingTimeout();
-            return m_interval;
+            Log.i(LOG_TAG, getLogPrefix() + "peer failure suspected (phi=" +
+                    String.format("%.1f", phi) + "), close connection.");
+            m_session.closeConnection();
+            return 0;
         }
-    }
 
-    private void handlePingTimeout()
-    {
-        if (m_lastBytesReceived == m_totalBytesReceived)
+        final long keepaliveInterval = m_keepaliveInterval;
+
+        /* Gossip is sent once per keepalive interval, when idle
+         * it goes together with the keepalive ping.
+         */
+        if (m_gossipTimer && ((currentTime - m_gossipTime) >= keepaliveInterval))
+            sendGossip(currentTime);
+
+        if ((currentTime - m_lastSendTime) >= keepaliveInterval)
         {
-            if (++m_pingTimeouts == 10)
+            if (m_adaptiveKeepalive)
             {
-                Log.i(LOG_TAG, getLogPrefix() + "ping timeout, close connection.");
-                m_session.closeConnection();
+                final long maxInterval = TimeUnit.SECONDS.toMillis(Config.PING_INTERVAL_MAX);
+                final long nextInterval = Math.min(keepaliveInterval * 2, maxInterval);
+                if ((nextInterval != keepaliveInterval) &&
+                    s_keepaliveIntervalUpdater.compareAndSet(this, keepaliveInterval, nextInterval))
+                {
+                    announceKeepaliveInterval(nextInterval);
+                }
             }
+            sendPing(getNextPingId());
         }
-        else
+        else if (m_adaptiveKeepalive && (keepaliveInterval < m_announcedInterval))
+        {
+            /* Interval was reset, let the remote side know it as soon as possible */
+            announceKeepaliveInterval(keepaliveInterval);
+        }
+
+        /* Next run when the detector would suspect the peer
+         * or something is to be sent, not earlier. Detector of the audio
+         * is used from the first run after the remote transmission started.
+         */
+        final long interval = m_keepaliveInterval;
+        long delay = (Math.min(detector.getTimeout(), maxSilence) - elapsed);
+        delay = Math.min(delay, (m_lastSendTime + interval - currentTime));
+        if (m_gossipTimer)
+            delay = Math.min(delay, (m_gossipTime + interval - currentTime));
+
+        if (m_clockSync != null)
         {
-            m_lastBytesReceived = m_totalBytesReceived;
-            m_pingTimeouts = 0;
+            long clockPingInterval =
+                    ((m_clockPings < ClockSync.MAX_SAMPLES) ? CLOCK_PING_INTERVAL : CLOCK_SYNC_INTERVAL);
+            if ((currentTime - m_clockPingTime) >= clockPingInterval)
+            {
+                sendData(Protocol.ClockPing.create(ClockSync.getTime()));
+                m_clockPingTime = currentTime;
+                m_clockPings++;
+                clockPingInterval =
+                        ((m_clockPings < ClockSync.MAX_SAMPLES) ? CLOCK_PING_INTERVAL : CLOCK_SYNC_INTERVAL);
+            }
+            delay = Math.min(delay, (m_clockPingTime + clockPingInterval - currentTime));
         }
 
-        m_pingId = ((m_pingId + 1) & Integer.MAX_VALUE);
-        final int idx = (m_pingId % m_pingSendTime.length);
-        final ByteBuffer msg = Protocol.Ping.create(m_pingId);
-        m_pingSendTime[idx] = System.currentTimeMillis();
+        return Math.max(delay, Config.TIMER_TICK);
+    }
+
+    private void announceKeepaliveInterval(long interval)
+    {
+        final ByteBuffer msg = Protocol.KeepaliveInterval.create((int) interval);
+        sendData(msg);
+        m_announcedInterval = interval;
+    }
+
+    private void resetKeepaliveInterval()
+    {
+        /* Called when a transmission starts */
+        m_keepaliveInterval = m_baseKeepaliveInterval;
+    }
+
+    private int getNextPingId()
+    {
+        return (s_pingIdUpdater.incrementAndGet(this) & Integer.MAX_VALUE);
+    }
+
+    private void sendPing(int pingId)
+    {
+        final RetainableByteBuffer msg = Protocol.Ping.create(pingId);
+        registerPing(pingId, msg.remaining());
+        m_session.sendData(msg);
+        msg.release();
+    }
+
+    private void registerPing(int pingId, int messageSize)
+    {
+        /* Ping is the last part of the message */
+        final int idx = (pingId % m_pingSendTime.length);
+        m_pingSendTime[idx] = System.nanoTime();
+        m_pingBytesSent[idx] = s_bytesSentUpdater.addAndGet(this, messageSize);
+        m_lastSendTime = System.currentTimeMillis();
+        m_linkStats.onPingSent();
+    }
+
+    private void sendData(ByteBuffer msg)
+    {
+        s_bytesSentUpdater.addAndGet(this, msg.remaining());
+        m_session.sendData(msg);
+        m_lastSendTime = System.currentTimeMillis();
+    }
+
+    private void sendData(RetainableByteBuffer msg)
+    {
+        s_bytesSentUpdater.addAndGet(this, msg.remaining());
         m_session.sendData(msg);
+        m_lastSendTime = System.currentTimeMillis();
+    }
+
+    private void handlePing(int id)
+    {
+        /* Pongs are collected and sent with one batch
+         * when all received messages are processed.
+         */
+        if ((m_controlBatch == null) || !m_controlBatch.addPong(id))
+        {
+            final RetainableByteBuffer pong = Protocol.Pong.create(id);
+            sendData(pong);
+            pong.release();
+        }
     }
 
-    private void handlePing(RetainableByteBuffer msg)
+    private void flushControlBatch()
     {
-        final int id = Protocol.Ping.getId(msg);
-        final ByteBuffer pong = Protocol.Pong.create(id);
-        m_session.sendData(pong);
+        if (m_controlBatch != null)
+        {
+            final RetainableByteBuffer msg = m_controlBatch.finish();
+            if (msg != null)
+            {
+                sendData(msg);
+                msg.release();
+            }
+        }
     }
 
-    private void handlePong(RetainableByteBuffer msg)
+    private void handlePong(int id)
     {
-        final int id = Protocol.Pong.getId(msg);
         final int idx = (id % m_pingSendTime.length);
-        final long ping = (System.currentTimeMillis() - m_pingSendTime[idx]) / 2;
+
+        /* Everything sent before the ping is delivered now. */
+        final long bytesSent = m_pingBytesSent[idx];
+        if (bytesSent > m_bytesAcked)
+            m_bytesAcked = bytesSent;
+        if (id == m_probePingId)
+            m_probePingId = -1;
+
+        final long rtt = (System.nanoTime() - m_pingSendTime[idx]);
+        m_linkStats.onPongReceived(rtt);
+
+        final long ping = TimeUnit.NANOSECONDS.toMillis(rtt) / 2;
         //Log.d(LOG_TAG, "ping " + id + ": delay=" + ping + "ms");
         if (Math.abs(ping - m_ping) > PING_THRESHOLD)
         {
@@ -122,18 +399,206 @@ public class ChannelSession implements Session.Listener
         }
     }
 
-    private void handleStationName(RetainableByteBuffer msg)
+    private void handleClockPing(long t1)
+    {
+        final ByteBuffer msg = Protocol.ClockPong.create(t1, m_receiveClock, ClockSync.getTime());
+        sendData(msg);
+    }
+
+    private void handleClockPong(long t1, long t2, long t3)
     {
+        final boolean wasSynchronized = m_clockSync.isSynchronized();
+        m_clockSync.addSample(t1, t2, t3, m_receiveClock);
+        if (!wasSynchronized && m_clockSync.isSynchronized())
+        {
+            Log.i(LOG_TAG, getLogPrefix() + "clock offset " + m_clockSync.getOffset() +
+                    "us (+-" + m_clockSync.getError() + "us)");
+        }
+    }
+
+    private void handleStationName(String stationName)
+    {
+        if ((stationName != null) && (stationName.length() > 0))
+            m_channel.setStationName(m_serviceName, m_session, stationName);
+    }
+
+    private void playAudioFrame(
+            boolean batchStart, boolean priority, int rateShift, RetainableByteBuffer audioFrame,
+            RetainableByteBuffer recoveryData, int recoveryRateShift, long captureTime)
+    {
+        if (batchStart)
+        {
+            setBatchOpen(true);
+            resetKeepaliveInterval();
+        }
+
+        /* Convert capture time to the local clock */
+        if ((captureTime != 0) && (m_clockSync != null) && m_clockSync.isSynchronized())
+        {
+            captureTime -= m_clockSync.getOffset();
+            m_linkStats.onFrameLatency(m_receiveClock - captureTime);
+        }
+        else
+            captureTime = 0;
+
+        if ((audioFrame == null) || (!priority && !m_channel.getScanner().isSelected(m_channel)))
+        {
+            /* Batch end, or another talkgroup is being played
+             * and the frame is dropped without decoding,
+             * emergency transmission is played anyway.
+             */
+            if (m_playing)
+            {
+                m_audioPlayer.batchEnd();
+                m_playing = false;
+            }
+            if (audioFrame == null)
+                setBatchOpen(false);
+            return;
+        }
+
+        if (priority && batchStart)
+        {
+            /* Emergency transmission started,
+             * do not make it wait for the audio queued before.
+             */
+            m_audioPlayer.flush();
+        }
+
+        if (!m_playing)
+        {
+            /* Batch start, or the talkgroup is selected in the middle of a batch */
+            batchStart = true;
+            m_playing = true;
+        }
+
+        if (recoveryData != null)
+        {
+            /* Previous frame was dropped by the sender,
+             * play a low rate copy of it first.
+             */
+            m_audioPlayer.play(batchStart, recoveryRateShift, recoveryData, 0);
+            batchStart = false;
+        }
+
+        m_audioPlayer.play(batchStart, rateShift, audioFrame, captureTime);
+    }
+
+    private void setBatchOpen(boolean batchOpen)
+    {
+        if (m_batchOpen != batchOpen)
+        {
+            m_batchOpen = batchOpen;
+            m_channel.getScanner().onStreamStateChanged(m_channel, batchOpen);
+            final Link link = m_session.getLink();
+            if (link != null)
+                link.onBatchStateChanged(batchOpen);
+        }
+    }
+
+    private void handleAudioFrame(RetainableByteBuffer msg)
+    {
+        final boolean batchStart = Protocol.AudioFrame.getBatchStart(msg);
+        final boolean priority = Protocol.AudioFrame.getPriority(msg);
+        final int rateShift = Protocol.AudioFrame.getRateShift(msg);
+
+        RetainableByteBuffer recoveryData = null;
+        int recoveryRateShift = 0;
+        if (Protocol.AudioFrame.hasRecovery(msg))
+        {
+            recoveryData = Protocol.AudioFrame.getRecoveryData(msg);
+            recoveryRateShift = Protocol.AudioFrame.getRecoveryRateShift(msg);
+        }
+
+        final long captureTime = Protocol.AudioFrame.getCaptureTime(msg);
+        final RetainableByteBuffer audioFrame;
         try
         {
-            final String stationName = Protocol.StationName.getStationName(msg);
-            if (stationName.length() > 0)
-                m_channel.setStationName(m_serviceName, m_session, stationName);
+            audioFrame = Protocol.AudioFrame.getAudioData(msg);
+        }
+        catch (final BufferUnderflowException ex)
+        {
+            Log.i(LOG_TAG, getLogPrefix() + "invalid audio frame received, close connection.");
+            if (recoveryData != null)
+                recoveryData.release();
+            m_session.closeConnection();
+            return;
+        }
+        playAudioFrame(batchStart, priority, rateShift, audioFrame, recoveryData, recoveryRateShift, captureTime);
+
+        if (recoveryData != null)
+            recoveryData.release();
+        if (audioFrame != null)
+            audioFrame.release();
+    }
+
+    private void handleBatchAudioFrame(Protocol.Batch.Reader reader)
+    {
+        final int flags = reader.getVarInt();
+        final boolean batchStart = ((flags & Protocol.AudioFrame.FLAG_BATCH_START) != 0);
+        final boolean priority = ((flags & Protocol.AudioFrame.FLAG_PRIORITY) != 0);
+        final int rateShift = (((flags & Protocol.AudioFrame.FLAG_HALF_RATE) != 0) ? 1 : 0);
+        final long captureTime = (((flags & Protocol.AudioFrame.FLAG_TIMESTAMP) != 0) ? reader.getLong() : 0);
+
+        RetainableByteBuffer recoveryData = null;
+        int recoveryRateShift = 0;
+        if ((flags & Protocol.AudioFrame.FLAG_RECOVERY) != 0)
+        {
+            final int recoverySize = reader.getVarInt();
+            recoveryRateShift = reader.getVarInt();
+            recoveryData = reader.getData(recoverySize);
+        }
+
+        final RetainableByteBuffer audioFrame = reader.getData(reader.getRemaining());
+        playAudioFrame(batchStart, priority, rateShift, audioFrame, recoveryData, recoveryRateShift, captureTime);
+
+        if (recoveryData != null)
+            recoveryData.release();
+        if (audioFrame != null)
+            audioFrame.release();
+    }
+
+    private void handleBatch(RetainableByteBuffer msg)
+    {
+        final Protocol.Batch.Reader reader = m_batchReader;
+        reader.init(msg);
+        try
+        {
+            while (reader.next())
+            {
+                final byte type = reader.getType();
+                switch (type)
+                {
+                    case Protocol.Batch.AUDIO_FRAME:
+                        handleBatchAudioFrame(reader);
+                    break;
+
+                    case Protocol.Batch.PING:
+                        handlePing(reader.getVarInt());
+                    break;
+
+                    case Protocol.Batch.PONG:
+                        handlePong(reader.getVarInt());
+                    break;
+
+                    case Protocol.Batch.STATION_NAME:
+                        handleStationName(reader.getString());
+                    break;
+
+                    default:
+                        Log.w(LOG_TAG, getLogPrefix() + "unexpected batch entry " + type);
+                    break;
+                }
+            }
         }
         catch (final CharacterCodingException ex)
         {
             Log.w(LOG_TAG, ex.toString(), ex);
         }
+        finally
+        {
+            reader.reset();
+        }
     }
 
     private void handleMessage(RetainableByteBuffer msg)
@@ -142,27 +607,99 @@ public class ChannelSession implements Session.Listener
         switch (messageID)
         {
             case Protocol.AudioFrame.ID:
-                final boolean batchStart = Protocol.AudioFrame.getBatchStart(msg);
-                final RetainableByteBuffer audioFrame = Protocol.AudioFrame.getAudioData(msg);
-                if (audioFrame == null)
-                    m_audioPlayer.batchEnd();
-                else
-                {
-                    m_audioPlayer.play(batchStart, audioFrame);
-                    audioFrame.release();
-                }
+                handleAudioFrame(msg);
+            break;
+
+            case Protocol.Batch.ID:
+                handleBatch(msg);
             break;
 
             case Protocol.Ping.ID:
-                handlePing(msg);
+                handlePing(Protocol.Ping.getId(msg));
             break;
 
             case Protocol.Pong.ID:
-                handlePong(msg);
+                handlePong(Protocol.Pong.getId(msg));
             break;
 
             case Protocol.StationName.ID:
-                handleStationName(msg);
+                try
+                {
+                    handleStationName(Protocol.StationName.getStationName(msg));
+                }
+                catch (final CharacterCodingException ex)
+                {
+                    Log.w(LOG_TAG, ex.toString(), ex);
+                }
+            break;
+
+            case Protocol.ClockPing.ID:
+                if (m_clockSync != null)
+                    handleClockPing(Protocol.ClockPing.getTime(msg));
+            break;
+
+            case Protocol.ClockPong.ID:
+                if (m_clockSync != null)
+                {
+                    handleClockPong(
+                            Protocol.ClockPong.getTime(msg, 0),
+                            Protocol.ClockPong.getTime(msg, 1),
+                            Protocol.ClockPong.getTime(msg, 2));
+                }
+            break;
+
+            case Protocol.KeepaliveInterval.ID:
+                m_peerKeepaliveInterval = Protocol.KeepaliveInterval.getInterval(msg);
+            break;
+
+            case Protocol.ChannelOpen.ID:
+                if (m_link != null)
+                    m_link.onChannelOpen(msg);
+            break;
+
+            case Protocol.ChannelData.ID:
+                if (m_link != null)
+                    m_link.onChannelData(msg);
+            break;
+
+            case Protocol.ChannelClose.ID:
+                if (m_link != null)
+                    m_link.onChannelClose(msg);
+            break;
+
+            case Protocol.FloorRequest.ID:
+                if (m_floorControl != null)
+                    m_floorControl.onRequest(this, msg);
+            break;
+
+            case Protocol.FloorGrant.ID:
+                if (m_floorControl != null)
+                    m_floorControl.onGrant(this, msg);
+            break;
+
+            case Protocol.FloorBusy.ID:
+                if (m_floorControl != null)
+                    m_floorControl.onBusy(this, msg);
+            break;
+
+            case Protocol.FloorRelease.ID:
+                if (m_floorControl != null)
+                    m_floorControl.onRelease(this);
+            break;
+
+            case Protocol.Gossip.ID:
+                try
+                {
+                    m_channel.onGossip(Protocol.Gossip.getEntries(msg));
+                }
+                catch (final CharacterCodingException ex)
+                {
+                    Log.w(LOG_TAG, ex.toString(), ex);
+                }
+                catch (final BufferUnderflowException ex)
+                {
+                    Log.w(LOG_TAG, getLogPrefix() + "invalid gossip message");
+                }
             break;
 
             default:
@@ -190,12 +727,14 @@ public class ChannelSession implements Session.Listener
     ChannelSession(
             Channel channel,
             String serviceName,
-            Session session,
+            Connection session,
             StreamDefragger streamDefragger,
             SessionManager sessionManager,
             AudioPlayer audioPlayer,
             TimerQueue timerQueue,
-            int pingInterval)
+            int pingInterval,
+            short features,
+            long resumptionToken)
     {
         m_channel = channel;
         m_serviceName = serviceName;
@@ -204,16 +743,82 @@ public class ChannelSession implements Session.Listener
         m_sessionManager = sessionManager;
         m_audioPlayer = audioPlayer;
         m_timerQueue = timerQueue;
+        m_timingWheel = channel.getTimingWheel();
+        m_resumptionToken = resumptionToken;
+        m_batchReader = new Protocol.Batch.Reader();
+        m_gossip = ((features & Protocol.FEATURE_GOSSIP) != 0);
+        if ((features & Protocol.FEATURE_BATCH) != 0)
+        {
+            m_controlBatch = new Protocol.Batch.Writer(64);
+            m_audioBatch = new Protocol.Batch.Writer(1024);
+        }
+        else
+        {
+            m_controlBatch = null;
+            m_audioBatch = null;
+        }
+        m_pingSendTime = new long[PING_TIME_BUFFER_SIZE];
+        m_pingBytesSent = new long[PING_TIME_BUFFER_SIZE];
+        m_linkStats = new LinkStats();
+        m_routeSlots = new int[SessionManager.ROUTES];
+        Arrays.fill(m_routeSlots, -1);
+
+        /* Talkgroup multiplexed over a link relies on the keepalive,
+         * failure detection, gossip timer and clock synchronization
+         * of the link session.
+         */
+        final Link link = session.getLink();
+        if ((features & Protocol.FEATURE_CLOCK_SYNC) == 0)
+            m_clockSync = null;
+        else if (link == null)
+            m_clockSync = new ClockSync();
+        else
+            m_clockSync = link.getClockSync();
+
+        if (((features & Protocol.FEATURE_MUX) != 0) && (link == null))
+        {
+            m_link = new Link(session, channel.getLinkManager(), timerQueue, m_clockSync);
+            if (serviceName != null)
+                channel.getLinkManager().addLink(Channel.getDeviceID(serviceName), m_link);
+        }
+        else
+            m_link = null;
 
-        if (pingInterval > 0)
+        m_gossipTimer = (m_gossip || (m_link != null));
+        if (m_gossip && (link != null))
+            link.addGossipSession(this);
+
+        m_probePingId = -1;
+
+        final long pingIntervalMs = TimeUnit.SECONDS.toMillis(pingInterval);
+        m_idleDetector = new FailureDetector(pingIntervalMs, Config.FAILURE_PHI_THRESHOLD);
+        m_audioDetector = new FailureDetector(AudioRecorder.FRAME_DURATION, Config.FAILURE_PHI_THRESHOLD);
+        m_lastReceiveTime = System.currentTimeMillis();
+        m_peerKeepaliveInterval = pingIntervalMs;
+        m_idleInterval = pingIntervalMs;
+
+        m_adaptiveKeepalive = ((features & Protocol.FEATURE_KEEPALIVE) != 0);
+        m_baseKeepaliveInterval = pingIntervalMs;
+        m_keepaliveInterval = pingIntervalMs;
+        m_announcedInterval = pingIntervalMs;
+        m_lastSendTime = m_lastReceiveTime;
+
+        if ((pingInterval > 0) && (link == null))
         {
-            m_pingSendTime = new long[PING_TIME_BUFFER_SIZE];
-            m_timerHandler = new TimerHandler(TimeUnit.SECONDS.toMillis(pingInterval));
-            m_timerQueue.schedule(m_timerHandler, pingInterval, TimeUnit.SECONDS);
+            m_timerHandler = new TimerHandler();
+            m_timingWheel.schedule(m_timerHandler, pingIntervalMs, TimeUnit.MILLISECONDS);
         }
 
         m_sessionManager.addSession(this);
 
+        if ((features & Protocol.FEATURE_FLOOR) != 0)
+        {
+            m_floorControl = channel.getFloorControl();
+            m_floorControl.addSession(this);
+        }
+        else
+            m_floorControl = null;
+
         // m_streamDefragger can contain some messages, we have to process them
         onDataReceivedEx(m_streamDefragger.getNext());
     }
@@ -235,13 +840,43 @@ public class ChannelSession implements Session.Listener
                 msg = m_streamDefragger.getNext();
             }
         }
+        flushControlBatch();
     }
 
     public void onDataReceived(RetainableByteBuffer data)
     {
-        final int bytesReceived = data.remaining();
+        final long currentTime = System.currentTimeMillis();
+        if (m_clockSync != null)
+            m_receiveClock = ClockSync.getTime();
+        if (m_skipSample)
+            m_skipSample = false;
+        else if (m_expectAudio)
+            m_audioDetector.addSample(currentTime - m_lastReceiveTime);
+        else
+            m_idleDetector.addSample(currentTime - m_lastReceiveTime);
+        m_lastReceiveTime = currentTime;
+
         onDataReceivedEx(m_streamDefragger.getNext(data));
-        s_totalBytesReceivedUpdater.addAndGet(this, bytesReceived);
+
+        final boolean expectAudio = (m_batchOpen || ((m_link != null) && m_link.isBatchOpen()));
+        if (m_expectAudio != expectAudio)
+        {
+            /* Interval till the next data will not be a sample for any detector */
+            m_expectAudio = expectAudio;
+            m_skipSample = true;
+        }
+
+        /* Our interval grows with a ping sent at once, the pong
+         * for it comes here, so the detector is restarted in time.
+         */
+        final long idleInterval = Math.min(m_keepaliveInterval, m_peerKeepaliveInterval);
+        if (idleInterval != m_idleInterval)
+        {
+            m_idleInterval = idleInterval;
+            m_idleDetector.reset(idleInterval);
+            if (!expectAudio)
+                m_skipSample = true;
+        }
     }
 
     public void onConnectionClosed()
@@ -253,7 +888,7 @@ public class ChannelSession implements Session.Listener
         {
             try
             {
-                m_timerQueue.cancel(m_timerHandler);
+                m_timingWheel.cancel(m_timerHandler);
             }
             catch (final InterruptedException ex)
             {
@@ -263,30 +898,315 @@ public class ChannelSession implements Session.Listener
             m_timerHandler = null;
         }
 
-        m_channel.removeSession(m_serviceName, m_session);
+        /* Audio player can be reused by the resumed session,
+         * complete the batch interrupted by the connection loss.
+         */
+        if (m_playing)
+        {
+            m_audioPlayer.batchEnd();
+            m_playing = false;
+        }
+        setBatchOpen(false);
+
+        if (m_gossip && (m_session.getLink() != null))
+            m_session.getLink().removeGossipSession(this);
+
+        if (m_link != null)
+        {
+            if (m_serviceName != null)
+                m_channel.getLinkManager().removeLink(Channel.getDeviceID(m_serviceName), m_link);
+            m_link.onConnectionClosed();
+        }
+
+        m_channel.removeSession(m_serviceName, m_session, m_resumptionToken, m_audioPlayer);
         m_sessionManager.removeSession(this);
-        m_audioPlayer.stopAndWait();
+        if (m_floorControl != null)
+            m_floorControl.removeSession(this);
         m_streamDefragger.close();
 
+        /* Recorder thread can keep a frame dropped after this point,
+         * it will see the flag and release the frame itself.
+         */
+        m_closed = true;
+        releaseLostFrame();
+        LeakTracker.report(getLogPrefix(), this);
+
         if (interrupted)
             Thread.currentThread().interrupt();
     }
 
-    void sendAudioFrame(RetainableByteBuffer audioFrame, boolean ptt)
+    void sendFloorMessage(ByteBuffer msg)
+    {
+        sendData(msg);
+    }
+
+    void sendGossip(long currentTime)
+    {
+        /* Not a traffic for the keepalive, m_lastSendTime is not updated.
+         * Talkgroups multiplexed over the link have no timer,
+         * the link session sends their gossip with its own one.
+         */
+        if (m_gossip)
+        {
+            final RetainableByteBuffer msg = m_channel.getGossip();
+            if (msg != null)
+            {
+                s_bytesSentUpdater.addAndGet(this, msg.remaining());
+                m_session.sendData(msg);
+                msg.release();
+            }
+        }
+        if (m_link != null)
+            m_link.sendGossip(currentTime);
+        m_gossipTime = currentTime;
+    }
+
+    private boolean isLagging(boolean priority)
+    {
+        final long backlog = (m_bytesSent - m_bytesAcked);
+        return (backlog > (priority ? MAX_PRIORITY_SEND_BACKLOG : MAX_SEND_BACKLOG));
+    }
+
+    private void sendProbe()
+    {
+        /* Keep one ping in flight while audio is being sent,
+         * the pong confirms data delivery and so limits the backlog.
+         */
+        if (m_probePingId == -1)
+        {
+            final int pingId = getNextPingId();
+            m_probePingId = pingId;
+            sendPing(pingId);
+        }
+    }
+
+    /* Run in the audio recorder thread,
+     * the message is created for this session only,
+     * so if possible let's send it together with a probe ping.
+     */
+    private void sendAudioMessage(ByteBuffer msg)
+    {
+        if ((m_audioBatch != null) && (m_probePingId == -1) && m_audioBatch.addAudioFrame(msg))
+        {
+            final int pingId = getNextPingId();
+            m_probePingId = pingId;
+            m_audioBatch.addPing(pingId);
+            final RetainableByteBuffer batch = m_audioBatch.finish();
+            registerPing(pingId, batch.remaining());
+            m_session.sendData(batch);
+            batch.release();
+        }
+        else
+        {
+            sendData(msg);
+            sendProbe();
+        }
+    }
+
+    private void sendAudioMessage(RetainableByteBuffer msg)
+    {
+        if (m_audioBatch == null)
+        {
+            sendData(msg);
+            sendProbe();
+        }
+        else
+            sendAudioMessage(msg.getNioByteBuffer());
+    }
+
+    /* Run in the audio recorder thread. */
+    private void updateAudioQuality()
+    {
+        final long backlog = (m_bytesSent - m_bytesAcked);
+        final long ping = m_ping;
+        if (m_halfRate)
+        {
+            if ((backlog < UPGRADE_SEND_BACKLOG) && (ping < UPGRADE_PING))
+            {
+                if (++m_goodFrames == UPGRADE_FRAMES)
+                {
+                    Log.i(LOG_TAG, getLogPrefix() + "link recovered, switch to full rate audio");
+                    m_halfRate = false;
+                }
+            }
+            else
+                m_goodFrames = 0;
+        }
+        else if ((backlog > DOWNGRADE_SEND_BACKLOG) || (ping > DOWNGRADE_PING))
+        {
+            Log.i(LOG_TAG, getLogPrefix() + "weak link (backlog=" + backlog +
+                    " ping=" + ping + "), switch to half rate audio");
+            m_halfRate = true;
+            m_goodFrames = 0;
+        }
+    }
+
+    /* Run in the audio recorder thread. */
+    private int checkAudioFrame(boolean batchStart, boolean batchEnd, boolean priority)
+    {
+        if (batchEnd)
+        {
+            /* Batch end is small and has to be delivered
+             * if the remote side received a batch start.
+             */
+            final int batchState = m_batchState;
+            m_batchState = BATCH_NONE;
+            if (m_framesDropped > 0)
+            {
+                Log.i(LOG_TAG, getLogPrefix() + "dropped " + m_framesDropped +
+                        " audio frames, recovered " + m_framesRecovered);
+                m_framesDropped = 0;
+                m_framesRecovered = 0;
+            }
+            return ((batchState == BATCH_SKIP) ? FRAME_DROP : FRAME_SEND);
+        }
+
+        if (isLagging(priority))
+        {
+            if (m_framesDropped++ == 0)
+            {
+                Log.i(LOG_TAG, getLogPrefix() + "send backlog " +
+                        (m_bytesSent - m_bytesAcked) + " bytes, drop audio");
+            }
+            if (batchStart || (m_batchState == BATCH_SKIP))
+                m_batchState = BATCH_SKIP;
+            /* Backlog is updated by the probe pong only,
+             * let it come as soon as the queued data is delivered.
+             */
+            sendProbe();
+            return FRAME_DROP;
+        }
+
+        if (batchStart)
+        {
+            m_batchState = BATCH_SEND;
+            return FRAME_SEND;
+        }
+
+        if (m_batchState == BATCH_SKIP)
+        {
+            /* Link recovered, but batch start was dropped,
+             * next frame should start the batch on the remote side.
+             */
+            m_batchState = BATCH_SEND;
+            return FRAME_SEND_BATCH_START;
+        }
+
+        return FRAME_SEND;
+    }
+
+    private void releaseLostFrame()
+    {
+        final RetainableByteBuffer lostFrame = s_lostFrameUpdater.getAndSet(this, null);
+        if (lostFrame != null)
+        {
+            LeakTracker.untrack(this, lostFrame);
+            lostFrame.release();
+        }
+    }
+
+    void sendAudioFrame(RetainableByteBuffer audioFrame)
+    {
+        if ((m_clockSync == null) && (Protocol.AudioFrame.getCaptureTime(audioFrame) != 0))
+            audioFrame = m_sessionManager.getAudioFrameWithoutTimestamp(audioFrame);
+
+        final boolean batchEnd = (audioFrame.remaining() == Protocol.AudioFrame.getMessageSize(0));
+        final boolean batchStart = (!batchEnd && Protocol.AudioFrame.getBatchStart(audioFrame));
+        final boolean priority = (!batchEnd && Protocol.AudioFrame.getPriority(audioFrame));
+        final int rc = checkAudioFrame(batchStart, batchEnd, priority);
+        if (rc == FRAME_DROP)
+        {
+            /* Keep the last dropped frame,
+             * low rate copy of it will be sent with the next frame.
+             */
+            if (batchEnd)
+                releaseLostFrame();
+            else
+            {
+                audioFrame.retain();
+                LeakTracker.track(this, audioFrame);
+                final RetainableByteBuffer lostFrame = s_lostFrameUpdater.getAndSet(this, audioFrame);
+                if (lostFrame != null)
+                {
+                    LeakTracker.untrack(this, lostFrame);
+                    lostFrame.release();
+                }
+                if (m_closed)
+                    releaseLostFrame();
+            }
+            return;
+        }
+
+        if (batchEnd)
+        {
+            releaseLostFrame();
+            sendData(audioFrame);
+            return;
+        }
+
+        if (batchStart)
+            resetKeepaliveInterval();
+
+        updateAudioQuality();
+        if (m_halfRate)
+            audioFrame = m_sessionManager.getHalfRateAudioFrame(audioFrame);
+
+        RetainableByteBuffer msg = null;
+        final RetainableByteBuffer lostFrame = s_lostFrameUpdater.getAndSet(this, null);
+        if (lostFrame != null)
+        {
+            msg = Protocol.AudioFrame.createWithRecovery(
+                    audioFrame, (batchStart || (rc == FRAME_SEND_BATCH_START)), lostFrame, RECOVERY_RATE_SHIFT);
+            LeakTracker.untrack(this, lostFrame);
+            lostFrame.release();
+        }
+
+        if (msg != null)
+        {
+            sendAudioMessage(msg);
+            msg.release();
+            m_framesRecovered++;
+        }
+        else if (rc == FRAME_SEND)
+        {
+            /* Frame is shared with other sessions, send it as is. */
+            sendData(audioFrame);
+            sendProbe();
+        }
+        else
+            sendAudioMessage(Protocol.AudioFrame.copy(audioFrame.getNioByteBuffer(), /*batch start*/true));
+    }
+
+    void sendAudioFrame(ByteBuffer audioFrame)
+    {
+        /* Collider will copy the data anyway,
+         * so the frame can be merged with a probe ping.
+         */
+        final int rc = checkAudioFrame(/*batch start*/false, /*batch end*/false, /*priority*/false);
+        if (rc == FRAME_SEND)
+            sendAudioMessage(audioFrame);
+        else if (rc == FRAME_SEND_BATCH_START)
+            sendAudioMessage(Protocol.AudioFrame.copy(audioFrame, /*batch start*/true));
+    }
+
+    void setSendAudio(boolean sendAudio)
+    {
+        m_sessionManager.setSendAudio(this, sendAudio);
+    }
+
+    int getRouteSlot(int route)
     {
-        if (ptt || m_sendAudio)
-            m_session.sendData(audioFrame);
+        return m_routeSlots[route];
     }
 
-    void sendAudioFrame(ByteBuffer audioFrame, boolean ptt)
+    void setRouteSlot(int route, int slot)
     {
-        if (ptt || m_sendAudio)
-            m_session.sendData(audioFrame);
+        m_routeSlots[route] = slot;
     }
 
-    void setSendAudio(boolean sendAudioFrame)
+    LinkStats.Snapshot getLinkStats()
     {
-        m_sendAudio = sendAudioFrame;
+        return m_linkStats.getSnapshot(m_clockSync);
     }
 
     SocketAddress getRemoteAddress()
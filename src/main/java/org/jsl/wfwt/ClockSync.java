@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+class ClockSync
+{
+    /* NTP style estimation of the remote clock offset.
+     * For each ClockPing/ClockPong exchange
+     *   offset = ((t2 - t1) + (t3 - t4)) / 2
+     *   delay  = (t4 - t1) - (t3 - t2)
+     * and the offset of the sample with the minimal delay
+     * among the last MAX_SAMPLES is used (NTP clock filter),
+     * the error is not more than a half of its delay.
+     * Station clock is System.nanoTime() in microseconds,
+     * it is monotonic and not affected by the wall clock adjustments.
+     * Samples are added by the collider thread.
+     */
+    static final int MAX_SAMPLES = 8;
+
+    private final long [] m_offset;
+    private final long [] m_delay;
+    private int m_idx;
+    private int m_count;
+    private volatile long m_bestOffset;
+    private volatile long m_bestDelay;
+
+    static long getTime()
+    {
+        return (System.nanoTime() / 1000);
+    }
+
+    ClockSync()
+    {
+        m_offset = new long[MAX_SAMPLES];
+        m_delay = new long[MAX_SAMPLES];
+        m_bestDelay = -1;
+    }
+
+    void addSample(long t1, long t2, long t3, long t4)
+    {
+        final long delay = ((t4 - t1) - (t3 - t2));
+        if (delay < 0)
+        {
+            /* Should not happen with monotonic clocks */
+            return;
+        }
+
+        m_offset[m_idx] = (((t2 - t1) + (t3 - t4)) / 2);
+        m_delay[m_idx] = delay;
+        if (++m_idx == MAX_SAMPLES)
+            m_idx = 0;
+        if (m_count < MAX_SAMPLES)
+            m_count++;
+
+        int best = 0;
+        for (int idx=1; idx<m_count; idx++)
+        {
+            if (m_delay[idx] < m_delay[best])
+                best = idx;
+        }
+        m_bestOffset = m_offset[best];
+        m_bestDelay = m_delay[best];
+    }
+
+    boolean isSynchronized()
+    {
+        return (m_bestDelay >= 0);
+    }
+
+    long getOffset()
+    {
+        /* Remote clock minus local clock, microseconds */
+        return m_bestOffset;
+    }
+
+    long getError()
+    {
+        return (m_bestDelay / 2);
+    }
+}
@@ -21,5 +21,25 @@ package org.jsl.wfwt;
 
 class Config
 {
+    public static String [] TALKGROUPS = { "Channel_00" }; /* by scan priority */
+    public static boolean SCANNER = true;
     public static int PING_INTERVAL = 2;
+    public static int PING_INTERVAL_MAX = 8; /* idle failure detection ~12 s, see below */
+    public static int RESUME_TIMEOUT = 30;
+    public static int RESOLVE_CONCURRENCY = 4;
+    public static int RESOLVE_TIMEOUT = 15;
+    public static boolean BROADCAST_DISCOVERY = true;
+    public static int GOSSIP_INTERVAL = 8000; /* milliseconds */
+    public static double FAILURE_PHI_THRESHOLD = 8d;
+    /* Failure detector deviation is at least RATIO * mean + MIN, phi 8
+     * is reached about 5.2 deviations after the mean: ~0.5 s of silence
+     * during a transmission (200 ms frames), ~1.5 keepalive intervals
+     * when idle. Measured WiFi jitter makes the timeout longer.
+     */
+    public static double FAILURE_STD_DEVIATION_RATIO = 0.1d;
+    public static int FAILURE_MIN_STD_DEVIATION = 30; /* milliseconds */
+    public static int TIMER_TICK = 50; /* milliseconds */
+    public static int TIMER_WHEEL_SIZE = 512;
+    public static int PLAYER_COMPACT_THRESHOLD = 8; /* queued frames */
+    public static int LEAK_TRACKER_SAMPLING = 16; /* debug build, track one of N references */
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.Session;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+interface Connection
+{
+    /* Talkgroup conversation with a remote station:
+     * the collider session itself, or a talkgroup multiplexed
+     * over the session shared with other talkgroups (see Link).
+     * Methods have the same semantics as the Session ones.
+     */
+    SocketAddress getRemoteAddress();
+    int sendData(ByteBuffer data);
+    int sendData(RetainableByteBuffer data);
+
+    /* Sends the prefix immediately followed by the data,
+     * no other message of the connection can come in between.
+     */
+    int sendData(RetainableByteBuffer prefix, ByteBuffer data);
+    int sendData(RetainableByteBuffer prefix, RetainableByteBuffer data);
+    int closeConnection();
+    Session.Listener replaceListener(Session.Listener listener);
+
+    /* Link the connection is multiplexed over,
+     * null for the collider session itself.
+     */
+    Link getLink();
+}
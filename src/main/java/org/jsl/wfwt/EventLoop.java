@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class EventLoop implements Runnable
+{
+    /* Single thread running posted events one by one in the order
+     * they were posted. Threads delivering events (NSD manager,
+     * broadcast discovery) only enqueue them and never wait
+     * for each other, listener callbacks run here as well.
+     * Collider callbacks do not go through the loop (see Channel).
+     */
+    private static final String LOG_TAG = "EventLoop";
+
+    private final Thread m_thread;
+    private final ReentrantLock m_lock;
+    private final Condition m_cond;
+    private final ArrayDeque<Runnable> m_queue;
+    private boolean m_stop;
+
+    EventLoop(String name)
+    {
+        m_thread = new Thread(this, name);
+        m_lock = new ReentrantLock();
+        m_cond = m_lock.newCondition();
+        m_queue = new ArrayDeque<Runnable>();
+        m_thread.start();
+    }
+
+    boolean post(Runnable event)
+    {
+        /* Returns false if the loop is stopped */
+        m_lock.lock();
+        try
+        {
+            if (m_stop)
+                return false;
+            m_queue.add(event);
+            if (m_queue.size() == 1)
+                m_cond.signal();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        return true;
+    }
+
+    public void run()
+    {
+        for (;;)
+        {
+            final Runnable event;
+            m_lock.lock();
+            try
+            {
+                while (m_queue.isEmpty() && !m_stop)
+                    m_cond.awaitUninterruptibly();
+                event = m_queue.poll();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            if (event == null)
+                break;
+
+            try
+            {
+                event.run();
+            }
+            catch (final RuntimeException ex)
+            {
+                /* Do not let one event stop the loop */
+                Log.e(LOG_TAG, m_thread.getName() + ": " + ex.toString(), ex);
+                if (BuildConfig.DEBUG)
+                    throw ex;
+            }
+        }
+        Log.i(LOG_TAG, m_thread.getName() + ": done");
+    }
+
+    void stopAndWait()
+    {
+        /* Events posted before are processed */
+        m_lock.lock();
+        try
+        {
+            m_stop = true;
+            m_cond.signal();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        boolean interrupted = false;
+        try
+        {
+            m_thread.join();
+        }
+        catch (final InterruptedException ex)
+        {
+            Log.w(LOG_TAG, ex.toString());
+            interrupted = true;
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
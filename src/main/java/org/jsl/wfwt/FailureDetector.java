@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+class FailureDetector
+{
+    /* Phi accrual failure detector: keeps a window of the
+     * inter-arrival times and estimates how unlikely it is
+     * to hear nothing from the peer for the given time,
+     * assuming normal distribution of the intervals.
+     * phi = -log10(P(interval > elapsed)), so phi 8 means
+     * the chance of mistake is about 1e-8.
+     * Samples are added by the collider thread,
+     * phi is calculated by the timer thread.
+     */
+    private static final int MAX_SAMPLES = 64;
+
+    private final double m_thresholdDeviations;
+    private final long [] m_samples;
+    private int m_idx;
+    private int m_count;
+    private long m_sum;
+    private long m_sumSq;
+
+    FailureDetector(long firstInterval, double phiThreshold)
+    {
+        m_thresholdDeviations = getDeviations(phiThreshold);
+        m_samples = new long[MAX_SAMPLES];
+        reset(firstInterval);
+    }
+
+    private static double getPhi(double y)
+    {
+        /* Logistic approximation of the normal CDF,
+         * y is a distance from the mean in standard deviations.
+         */
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0d)
+            return -Math.log10(e / (1d + e));
+        else
+            return -Math.log10(1d - 1d / (1d + e));
+    }
+
+    private static double getDeviations(double phi)
+    {
+        /* Distance from the mean giving the phi (about 5.2 for phi 8),
+         * phi grows with the distance, so bisection is enough.
+         */
+        double low = 0d;
+        double high = 16d;
+        for (int idx=0; idx<32; idx++)
+        {
+            final double y = ((low + high) / 2d);
+            if (getPhi(y) < phi)
+                low = y;
+            else
+                high = y;
+        }
+        return high;
+    }
+
+    synchronized void reset(long firstInterval)
+    {
+        /* Bootstrap with a couple of samples around the expected interval,
+         * so phi is meaningful from the very beginning.
+         */
+        m_idx = 0;
+        m_count = 0;
+        m_sum = 0;
+        m_sumSq = 0;
+        final long deviation = (firstInterval / 4);
+        addSample(firstInterval - deviation);
+        addSample(firstInterval + deviation);
+    }
+
+    synchronized void addSample(long interval)
+    {
+        if (m_count == MAX_SAMPLES)
+        {
+            final long sample = m_samples[m_idx];
+            m_sum -= sample;
+            m_sumSq -= (sample * sample);
+        }
+        else
+            m_count++;
+
+        m_samples[m_idx] = interval;
+        m_sum += interval;
+        m_sumSq += (interval * interval);
+
+        if (++m_idx == MAX_SAMPLES)
+            m_idx = 0;
+    }
+
+    private double getStdDeviation(double mean)
+    {
+        /* Do not let too regular traffic make the detector
+         * oversensitive to the usual WiFi jitter: the deviation
+         * is not less than a fraction of the mean interval
+         * plus a constant margin (see Config).
+         */
+        final double variance = ((double) m_sumSq / m_count) - (mean * mean);
+        final double minStdDeviation =
+                (mean * Config.FAILURE_STD_DEVIATION_RATIO + Config.FAILURE_MIN_STD_DEVIATION);
+        return Math.max(Math.sqrt(Math.max(variance, 0d)), minStdDeviation);
+    }
+
+    synchronized double getPhi(long elapsed)
+    {
+        final double mean = ((double) m_sum / m_count);
+        return getPhi((elapsed - mean) / getStdDeviation(mean));
+    }
+
+    synchronized long getTimeout()
+    {
+        /* Time since the last arrival when phi reaches the threshold */
+        final double mean = ((double) m_sum / m_count);
+        return (long) (mean + m_thresholdDeviations * getStdDeviation(mean));
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.TimerQueue;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+class FloorControl
+{
+    /* Distributed floor control of the talkgroup, Ricart-Agrawala style:
+     * station willing to talk sends FloorRequest stamped with the Lamport
+     * clock to all stations and starts transmission when all of them
+     * replied with FloorGrant. Station which is talking or has an earlier
+     * request replies with FloorBusy and remembers the request (queue),
+     * the grant is sent on release. Stations of old versions do not
+     * negotiate FEATURE_FLOOR and do not take part. A silent station
+     * is waited for: the reply can be queued behind the audio backlog
+     * of a loaded link, and a broken link is closed by the failure
+     * detector of the session, which grants (see removeSession()).
+     * The floor is released automatically after HOLD_TIMEOUT.
+     * Requests and releases come from the audio recorder thread,
+     * replies are handled by the collider threads.
+     */
+    private static final String LOG_TAG = "FloorControl";
+
+    private static final long CHECK_INTERVAL = 250; /* milliseconds */
+    private static final long HOLD_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    /* Floor state reported to the UI */
+    static final int FLOOR_IDLE = 0; /* nobody talks */
+    static final int FLOOR_BUSY = 1; /* other station talks */
+    static final int FLOOR_WAIT = 2; /* our request is queued */
+    static final int FLOOR_TALK = 3; /* floor is granted to us */
+
+    private static final int IDLE      = 0;
+    private static final int REQUESTED = 1;
+    private static final int GRANTED   = 2;
+
+    private class Timer implements TimerQueue.Task
+    {
+        public long run()
+        {
+            onTimer();
+            return CHECK_INTERVAL;
+        }
+    }
+
+    private final Channel m_channel;
+    private final TimerQueue m_timerQueue;
+    private final Timer m_timer;
+    private final SecureRandom m_random;
+    private final ReentrantLock m_lock;
+
+    /* Sessions where FEATURE_FLOOR is negotiated */
+    private final HashSet<ChannelSession> m_sessions;
+    /* Sessions did not reply to our request yet,
+     * and sessions replied with FloorBusy.
+     */
+    private final HashSet<ChannelSession> m_pending;
+    private final HashSet<ChannelSession> m_queued;
+    /* Remote requests we replied with FloorBusy (request time) */
+    private final HashMap<ChannelSession, Integer> m_deferred;
+    /* Sessions we granted the floor to (grant time) */
+    private final HashMap<ChannelSession, Long> m_holders;
+
+    private int m_clock;
+    private int m_state;
+    private int m_requestTime;
+    private int m_nonce;
+    private long m_stateTime;
+    private int m_floorState;
+
+    /* Checked by the audio recorder for each frame */
+    private volatile boolean m_granted;
+
+    FloorControl(Channel channel, TimerQueue timerQueue)
+    {
+        m_channel = channel;
+        m_timerQueue = timerQueue;
+        m_timer = new Timer();
+        m_random = new SecureRandom();
+        m_lock = new ReentrantLock();
+        m_sessions = new HashSet<ChannelSession>();
+        m_pending = new HashSet<ChannelSession>();
+        m_queued = new HashSet<ChannelSession>();
+        m_deferred = new HashMap<ChannelSession, Integer>();
+        m_holders = new HashMap<ChannelSession, Long>();
+        m_state = IDLE;
+        m_floorState = FLOOR_IDLE;
+        m_timerQueue.schedule(m_timer, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() throws InterruptedException
+    {
+        m_timerQueue.cancel(m_timer);
+    }
+
+    private static boolean isEarlier(int time1, int nonce1, int time2, int nonce2)
+    {
+        if (time1 != time2)
+            return ((time1 - time2) < 0);
+        return (nonce1 < nonce2);
+    }
+
+    private void setGrantedLocked()
+    {
+        m_state = GRANTED;
+        m_stateTime = System.nanoTime();
+        m_pending.clear();
+        m_queued.clear();
+        m_granted = true;
+    }
+
+    private int updateFloorStateLocked()
+    {
+        /* Returns new floor state if it has been changed, -1 otherwise */
+        final int floorState;
+        if (m_state == GRANTED)
+            floorState = FLOOR_TALK;
+        else if ((m_state == REQUESTED) && !m_queued.isEmpty())
+            floorState = FLOOR_WAIT;
+        else if (!m_holders.isEmpty())
+            floorState = FLOOR_BUSY;
+        else
+            floorState = FLOOR_IDLE;
+
+        if (floorState == m_floorState)
+            return -1;
+        m_floorState = floorState;
+        return floorState;
+    }
+
+    private void notifyFloorState(int floorState)
+    {
+        if (floorState >= 0)
+            m_channel.onFloorStateChanged();
+    }
+
+    void addSession(ChannelSession session)
+    {
+        m_lock.lock();
+        try
+        {
+            /* Session joined in the middle of our request
+             * or transmission does not participate in it.
+             */
+            m_sessions.add(session);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void removeSession(ChannelSession session)
+    {
+        /* Closed session grants and releases everything */
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            m_sessions.remove(session);
+            m_deferred.remove(session);
+            m_holders.remove(session);
+            m_queued.remove(session);
+            if (m_pending.remove(session) && m_pending.isEmpty() && (m_state == REQUESTED))
+                setGrantedLocked();
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    /* Run in the audio recorder thread. */
+    void request()
+    {
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            if (m_state != IDLE)
+                return;
+
+            m_requestTime = ++m_clock;
+            m_nonce = m_random.nextInt();
+            m_state = REQUESTED;
+            m_stateTime = System.nanoTime();
+            if (m_sessions.isEmpty())
+                setGrantedLocked();
+            else
+            {
+                m_pending.addAll(m_sessions);
+                final ByteBuffer msg = Protocol.FloorRequest.create(m_requestTime, m_nonce);
+                for (ChannelSession session : m_sessions)
+                    session.sendFloorMessage(msg.duplicate());
+            }
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    int getFloorState()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_floorState;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    boolean isGranted()
+    {
+        return m_granted;
+    }
+
+    private void releaseLocked()
+    {
+        m_state = IDLE;
+        m_granted = false;
+        m_pending.clear();
+        m_queued.clear();
+
+        final ByteBuffer msg = Protocol.FloorRelease.create();
+        for (ChannelSession session : m_sessions)
+            session.sendFloorMessage(msg.duplicate());
+
+        /* Grant queued requests, the earliest one will win */
+        final long currentTime = System.nanoTime();
+        for (Map.Entry<ChannelSession, Integer> e : m_deferred.entrySet())
+        {
+            final ChannelSession session = e.getKey();
+            session.sendFloorMessage(Protocol.FloorGrant.create(e.getValue()));
+            m_holders.put(session, currentTime);
+        }
+        m_deferred.clear();
+    }
+
+    /* Run in the audio recorder thread. */
+    void release()
+    {
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            if (m_state == IDLE)
+                return;
+            releaseLocked();
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    void onRequest(ChannelSession session, RetainableByteBuffer msg)
+    {
+        final int requestTime = Protocol.FloorRequest.getRequestTime(msg);
+        final int nonce = Protocol.FloorRequest.getNonce(msg);
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            if ((requestTime - m_clock) > 0)
+                m_clock = requestTime;
+            m_clock++;
+
+            if ((m_state == GRANTED) ||
+                ((m_state == REQUESTED) && isEarlier(m_requestTime, m_nonce, requestTime, nonce)))
+            {
+                m_deferred.put(session, requestTime);
+                session.sendFloorMessage(Protocol.FloorBusy.create(requestTime));
+            }
+            else
+            {
+                m_holders.put(session, System.nanoTime());
+                session.sendFloorMessage(Protocol.FloorGrant.create(requestTime));
+            }
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    void onGrant(ChannelSession session, RetainableByteBuffer msg)
+    {
+        final int requestTime = Protocol.FloorGrant.getRequestTime(msg);
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            if ((m_state != REQUESTED) || (requestTime != m_requestTime))
+            {
+                /* Reply to the request we already gave up */
+                return;
+            }
+            m_queued.remove(session);
+            if (m_pending.remove(session) && m_pending.isEmpty())
+                setGrantedLocked();
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    void onBusy(ChannelSession session, RetainableByteBuffer msg)
+    {
+        final int requestTime = Protocol.FloorBusy.getRequestTime(msg);
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            if ((m_state != REQUESTED) || (requestTime != m_requestTime) || !m_pending.contains(session))
+                return;
+            m_queued.add(session);
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    void onRelease(ChannelSession session)
+    {
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            m_holders.remove(session);
+            m_deferred.remove(session);
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+
+    private void onTimer()
+    {
+        int floorState;
+        m_lock.lock();
+        try
+        {
+            final long currentTime = System.nanoTime();
+            if (m_state == REQUESTED)
+            {
+                /* Last resort if some station neither replies
+                 * nor is lost, the holder releases by now anyway.
+                 */
+                if ((currentTime - m_stateTime) >= HOLD_TIMEOUT)
+                {
+                    Log.i(LOG_TAG, m_channel.getName() + ": floor request timeout, " +
+                            m_pending.size() + " stations did not grant");
+                    setGrantedLocked();
+                }
+            }
+            else if (m_state == GRANTED)
+            {
+                if ((currentTime - m_stateTime) >= HOLD_TIMEOUT)
+                {
+                    Log.i(LOG_TAG, m_channel.getName() + ": floor hold timeout, release");
+                    releaseLocked();
+                }
+            }
+
+            /* Release never received (lost with the link) */
+            final Iterator<Map.Entry<ChannelSession, Long>> it = m_holders.entrySet().iterator();
+            while (it.hasNext())
+            {
+                if ((currentTime - it.next().getValue()) >= HOLD_TIMEOUT)
+                    it.remove();
+            }
+
+            floorState = updateFloorStateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        notifyFloorState(floorState);
+    }
+}
@@ -33,17 +33,21 @@ public class HandshakeClientSession implements Session.Listener
     private static final String LOG_TAG = HandshakeClientSession.class.getSimpleName();
 
     private final Channel m_channel;
+    private final String m_audioFormat;
+    private final String m_stationName;
     private final String m_serviceName;
-    private final Session m_session;
+    private final Connection m_session;
     private final SessionManager m_sessionManager;
     private final StreamDefragger m_streamDefragger;
     private final TimerQueue m_timerQueue;
+    private final TimingWheel m_timingWheel;
     private final int m_pingInterval;
     private TimerHandler m_timerHandler;
+    private boolean m_resume;
 
-    private class TimerHandler implements TimerQueue.Task
+    private class TimerHandler extends TimingWheel.Timer
     {
-        public long run()
+        long run()
         {
             Log.i(LOG_TAG, getLogPrefix() + "session timeout, close connection.");
             m_session.closeConnection();
@@ -61,36 +65,75 @@ public class HandshakeClientSession implements Session.Listener
             String audioFormat,
             String stationName,
             String serviceName,
-            Session session,
+            Connection session,
             SessionManager sessionManager,
             TimerQueue timerQueue,
             int pingInterval )
     {
         m_channel = channel;
+        m_audioFormat = audioFormat;
+        m_stationName = stationName;
         m_serviceName = serviceName;
         m_session = session;
         m_streamDefragger = ChannelSession.createStreamDefragger();
         m_sessionManager = sessionManager;
         m_timerQueue = timerQueue;
+        m_timingWheel = channel.getTimingWheel();
         m_pingInterval = pingInterval;
+    }
 
-        /* Timer should be started before handshake request send. */
-        if (pingInterval > 0)
+    void start( long resumptionToken )
+    {
+        /* Called when the session listener is set,
+         * timer should be started before handshake request send.
+         */
+        if (m_pingInterval > 0)
         {
             m_timerHandler = new TimerHandler();
-            timerQueue.schedule(m_timerHandler, pingInterval, TimeUnit.SECONDS);
+            m_timingWheel.schedule(m_timerHandler, m_pingInterval, TimeUnit.SECONDS);
+        }
+
+        if (resumptionToken != 0)
+        {
+            /* Try to resume previous session with one message */
+            m_resume = true;
+            m_session.sendData( Protocol.ResumeRequest.create(Protocol.FEATURES, resumptionToken) );
         }
+        else
+            sendHandshakeRequest();
+    }
 
+    private void sendHandshakeRequest()
+    {
         try
         {
-            final ByteBuffer handshakeRequest = Protocol.HandshakeRequest.create( audioFormat, stationName );
-            session.sendData( handshakeRequest );
+            final ByteBuffer handshakeRequest = Protocol.HandshakeRequest.create( m_audioFormat, m_stationName, Protocol.FEATURES );
+            m_session.sendData( handshakeRequest );
         }
         catch (final CharacterCodingException ex)
         {
             Log.e( LOG_TAG, getLogPrefix() + ex.toString() );
-            session.closeConnection();
+            m_session.closeConnection();
+        }
+    }
+
+    private AudioPlayer getAudioPlayer(String audioFormat)
+    {
+        if (m_resume)
+        {
+            /* Reuse the player of the previous session if it is still alive */
+            final AudioPlayer audioPlayer = m_channel.takeAudioPlayer( m_serviceName );
+            if (audioPlayer != null)
+            {
+                if (audioPlayer.getAudioFormat().equals(audioFormat))
+                {
+                    audioPlayer.setSession( m_session );
+                    return audioPlayer;
+                }
+                audioPlayer.stopAndWait();
+            }
         }
+        return AudioPlayer.create( getLogPrefix(), audioFormat, m_channel, m_serviceName, m_session );
     }
 
     public void onDataReceived( RetainableByteBuffer data )
@@ -99,7 +142,7 @@ public class HandshakeClientSession implements Session.Listener
         {
             try
             {
-                final int rc = m_timerQueue.cancel( m_timerHandler );
+                final int rc = m_timingWheel.cancel( m_timerHandler );
                 if (rc != 0)
                 {
                     /* Timer already fired, Session.closeConnection is called,
@@ -136,8 +179,9 @@ public class HandshakeClientSession implements Session.Listener
                 {
                     final String audioFormat = Protocol.HandshakeReplyOk.getAudioFormat( msg );
                     final String stationName = Protocol.HandshakeReplyOk.getStationName( msg );
-                    final AudioPlayer audioPlayer = AudioPlayer.create(
-                            getLogPrefix(), audioFormat, m_channel, m_serviceName, m_session );
+                    final short features = Protocol.HandshakeReplyOk.getFeatures( msg );
+                    final long resumptionToken = Protocol.HandshakeReplyOk.getResumptionToken( msg );
+                    final AudioPlayer audioPlayer = getAudioPlayer( audioFormat );
                     if (audioPlayer == null)
                     {
                         Log.w( LOG_TAG, getLogPrefix() +
@@ -147,10 +191,12 @@ public class HandshakeClientSession implements Session.Listener
                     else
                     {
                         Log.i( LOG_TAG, getLogPrefix() +
-                                "HandshakeReplyOk: audioFormat[" + audioFormat + "] stationName[" + stationName + "]" );
+                                "HandshakeReplyOk: audioFormat[" + audioFormat + "] stationName[" + stationName +
+                                "] features[" + features + "] resumed[" + m_resume + "]" );
 
                         final ChannelSession channelSession = new ChannelSession(
-                                m_channel, m_serviceName, m_session, m_streamDefragger, m_sessionManager, audioPlayer, m_timerQueue, m_pingInterval);
+                                m_channel, m_serviceName, m_session, m_streamDefragger, m_sessionManager,
+                                audioPlayer, m_timerQueue, m_pingInterval, features, resumptionToken);
 
                         m_channel.setStationInfo( m_serviceName, channelSession, stationName );
                         m_session.replaceListener( channelSession );
@@ -162,6 +208,19 @@ public class HandshakeClientSession implements Session.Listener
                     m_session.closeConnection();
                 }
             }
+            else if ((messageId == Protocol.ResumeRejected.ID) && m_resume)
+            {
+                /* Session expired on the other side, continue with a full handshake */
+                Log.i( LOG_TAG, getLogPrefix() + "ResumeRequest rejected." );
+                m_resume = false;
+                final AudioPlayer audioPlayer = m_channel.takeAudioPlayer( m_serviceName );
+                if (audioPlayer != null)
+                    audioPlayer.stopAndWait();
+
+                if (m_timerHandler != null)
+                    m_timingWheel.schedule( m_timerHandler, m_pingInterval, TimeUnit.SECONDS );
+                sendHandshakeRequest();
+            }
             else if (messageId == Protocol.HandshakeReplyFail.ID)
             {
                 String statusText = null;
@@ -195,7 +254,7 @@ public class HandshakeClientSession implements Session.Listener
         {
             try
             {
-                m_timerQueue.cancel( m_timerHandler );
+                m_timingWheel.cancel( m_timerHandler );
             }
             catch (final InterruptedException ex)
             {
@@ -204,6 +263,14 @@ public class HandshakeClientSession implements Session.Listener
             }
         }
 
+        if (m_resume)
+        {
+            /* Session was not resumed, player is not needed any more */
+            final AudioPlayer audioPlayer = m_channel.takeAudioPlayer( m_serviceName );
+            if (audioPlayer != null)
+                audioPlayer.stopAndWait();
+        }
+
         m_streamDefragger.close();
 
         if (interrupted)
@@ -32,16 +32,17 @@ public class HandshakeServerSession implements Session.Listener
     private final String m_audioFormat;
     private final String m_stationName;
     private final Channel m_channel;
-    private final Session m_session;
+    private final Connection m_session;
     private final StreamDefragger m_streamDefragger;
     private final SessionManager m_sessionManager;
     private final TimerQueue m_timerQueue;
+    private final TimingWheel m_timingWheel;
     private final int m_pingInterval;
     private TimerHandler m_timerHandler;
 
-    private class TimerHandler implements TimerQueue.Task
+    private class TimerHandler extends TimingWheel.Timer
     {
-        public long run()
+        long run()
         {
             Log.i(LOG_TAG, getLogPrefix() + "session timeout, close connection.");
             m_session.closeConnection();
@@ -58,7 +59,7 @@ public class HandshakeServerSession implements Session.Listener
             String audioFormat,
             String stationName,
             Channel channel,
-            Session session,
+            Connection session,
             SessionManager sessionManager,
             TimerQueue timerQueue,
             int pingInterval)
@@ -70,16 +71,69 @@ public class HandshakeServerSession implements Session.Listener
         m_streamDefragger = ChannelSession.createStreamDefragger();
         m_sessionManager = sessionManager;
         m_timerQueue = timerQueue;
+        m_timingWheel = channel.getTimingWheel();
         m_pingInterval = pingInterval;
         if (pingInterval > 0)
         {
             m_timerHandler = new TimerHandler();
-            m_timerQueue.schedule(m_timerHandler, pingInterval, TimeUnit.SECONDS);
+            m_timingWheel.schedule(m_timerHandler, pingInterval, TimeUnit.SECONDS);
         }
 
         Log.i(LOG_TAG, getLogPrefix() + "connection accepted");
     }
 
+    private void startSession(short features, AudioPlayer audioPlayer, String stationName, long resumptionToken)
+            throws CharacterCodingException
+    {
+        /* Send reply first to be sure other side will receive
+         * HandshakeReplyOk before anything else.
+         */
+        final ByteBuffer handshakeReply = Protocol.HandshakeReplyOk.create(m_audioFormat, m_stationName, features, resumptionToken);
+        m_session.sendData( handshakeReply );
+
+        final ChannelSession channelSession = new ChannelSession(
+                m_channel, null, m_session, m_streamDefragger, m_sessionManager, audioPlayer,
+                m_timerQueue, m_pingInterval, features, resumptionToken);
+
+        m_channel.addSession(m_session, channelSession, stationName);
+        m_session.replaceListener(channelSession);
+    }
+
+    private void handleResumeRequest(RetainableByteBuffer msg)
+    {
+        final short protocolVersion = Protocol.ResumeRequest.getProtocolVersion(msg);
+        final Channel.ParkedSession parkedSession = (protocolVersion == Protocol.VERSION)
+                ? m_channel.resumeSession(Protocol.ResumeRequest.getResumptionToken(msg))
+                : null;
+
+        if (parkedSession == null)
+        {
+            /* Client is expected to send a HandshakeRequest now. */
+            Log.i(LOG_TAG, getLogPrefix() + "session can not be resumed");
+            m_session.sendData(Protocol.ResumeRejected.create());
+            if (m_timerHandler != null)
+                m_timingWheel.schedule(m_timerHandler, m_pingInterval, TimeUnit.SECONDS);
+        }
+        else
+        {
+            final short features = (short) (Protocol.ResumeRequest.getFeatures(msg) & Protocol.FEATURES);
+            final long resumptionToken = ((features & Protocol.FEATURE_RESUME) == 0) ? 0 : parkedSession.resumptionToken;
+            final AudioPlayer audioPlayer = parkedSession.audioPlayer;
+            Log.i(LOG_TAG, getLogPrefix() + "session resumed, features=" + features);
+            try
+            {
+                audioPlayer.setSession(m_session);
+                startSession(features, audioPlayer, parkedSession.stationName, resumptionToken);
+            }
+            catch (final CharacterCodingException ex)
+            {
+                Log.e(LOG_TAG, getLogPrefix() + ex.toString(), ex);
+                audioPlayer.stopAndWait();
+                m_session.closeConnection();
+            }
+        }
+    }
+
     public void onDataReceived( RetainableByteBuffer data )
     {
         final RetainableByteBuffer msg = m_streamDefragger.getNext( data );
@@ -102,7 +156,7 @@ public class HandshakeServerSession implements Session.Listener
             {
                 try
                 {
-                    if (m_timerQueue.cancel(m_timerHandler) != 0)
+                    if (m_timingWheel.cancel(m_timerHandler) != 0)
                     {
                         /* else timer fired, session is being closed,
                          * onConnectionClosed() will be called soon, do nothing here.
@@ -127,6 +181,7 @@ public class HandshakeServerSession implements Session.Listener
                     {
                         final String audioFormat = Protocol.HandshakeRequest.getAudioFormat( msg );
                         final String stationName = Protocol.HandshakeRequest.getStationName( msg );
+                        final short features = (short) (Protocol.HandshakeRequest.getFeatures(msg) & Protocol.FEATURES);
                         final AudioPlayer audioPlayer = AudioPlayer.create(
                                 getLogPrefix(), audioFormat, m_channel, null, m_session);
                         if (audioPlayer == null)
@@ -137,19 +192,10 @@ public class HandshakeServerSession implements Session.Listener
                         }
                         else
                         {
-                            Log.i(LOG_TAG, getLogPrefix() + "handshake ok");
-
-                            /* Send reply first to be sure other side will receive
-                             * HandshakeReplyOk before anything else.
-                             */
-                            final ByteBuffer handshakeReply = Protocol.HandshakeReplyOk.create(m_audioFormat, m_stationName);
-                            m_session.sendData( handshakeReply );
-
-                            final ChannelSession channelSession = new ChannelSession(
-                                    m_channel, null, m_session, m_streamDefragger, m_sessionManager, audioPlayer, m_timerQueue, m_pingInterval);
-
-                            m_channel.addSession(m_session, channelSession, stationName);
-                            m_session.replaceListener(channelSession);
+                            Log.i(LOG_TAG, getLogPrefix() + "handshake ok, features=" + features);
+                            final long resumptionToken = ((features & Protocol.FEATURE_RESUME) == 0)
+                                    ? 0 : m_channel.createResumptionToken();
+                            startSession(features, audioPlayer, stationName, resumptionToken);
                         }
                     }
                     catch (final CharacterCodingException ex)
@@ -177,6 +223,8 @@ public class HandshakeServerSession implements Session.Listener
                     m_session.closeConnection();
                 }
             }
+            else if (messageID == Protocol.ResumeRequest.ID)
+                handleResumeRequest(msg);
             else
             {
                 Log.i( LOG_TAG, getLogPrefix() +
@@ -197,7 +245,7 @@ public class HandshakeServerSession implements Session.Listener
         {
             try
             {
-                m_timerQueue.cancel( m_timerHandler );
+                m_timingWheel.cancel( m_timerHandler );
             }
             catch (final InterruptedException ex)
             {
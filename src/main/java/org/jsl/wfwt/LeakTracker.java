@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+class LeakTracker
+{
+    /* Debug build helper tracking references to the retainable buffers
+     * kept by some owner (audio player, session, recorder).
+     * Owner registers the reference when retains (or creates) a buffer
+     * and unregisters it when releases, only one of LEAK_TRACKER_SAMPLING
+     * references is tracked to keep the overhead low.
+     * References still registered when the owner is done are reported
+     * with the place where they were taken, missed release pins
+     * the whole Collider input block the buffer is a slice of.
+     * Does nothing in the release build.
+     */
+    private static final String LOG_TAG = LeakTracker.class.getSimpleName();
+
+    private static class Record
+    {
+        final Object owner;
+        final Throwable site;
+        int count;
+        Record next; /* same buffer kept by another owner */
+
+        Record(Object owner, Throwable site, Record next)
+        {
+            this.owner = owner;
+            this.site = site;
+            this.count = 1;
+            this.next = next;
+        }
+    }
+
+    private static final IdentityHashMap<RetainableByteBuffer, Record> s_records
+            = new IdentityHashMap<RetainableByteBuffer, Record>();
+    private static int s_counter;
+
+    static void track(Object owner, RetainableByteBuffer buf)
+    {
+        if (!BuildConfig.DEBUG)
+            return;
+
+        synchronized (s_records)
+        {
+            final Record head = s_records.get(buf);
+            for (Record record=head; record!=null; record=record.next)
+            {
+                if (record.owner == owner)
+                {
+                    record.count++;
+                    return;
+                }
+            }
+
+            if ((++s_counter % Config.LEAK_TRACKER_SAMPLING) != 0)
+                return;
+
+            final Throwable site = new Throwable(owner.getClass().getSimpleName() + " retained " + buf);
+            s_records.put(buf, new Record(owner, site, head));
+        }
+    }
+
+    static void untrack(Object owner, RetainableByteBuffer buf)
+    {
+        if (!BuildConfig.DEBUG)
+            return;
+
+        synchronized (s_records)
+        {
+            final Record head = s_records.get(buf);
+            Record prev = null;
+            for (Record record=head; record!=null; prev=record, record=record.next)
+            {
+                if (record.owner == owner)
+                {
+                    if (--record.count == 0)
+                    {
+                        if (prev != null)
+                            prev.next = record.next;
+                        else if (record.next != null)
+                            s_records.put(buf, record.next);
+                        else
+                            s_records.remove(buf);
+                    }
+                    return;
+                }
+            }
+            /* else reference was not sampled */
+        }
+    }
+
+    static int report(String logPrefix, Object owner)
+    {
+        /* Called when the owner is done,
+         * reports and forgets references it still keeps.
+         */
+        if (!BuildConfig.DEBUG)
+            return 0;
+
+        int leaks = 0;
+        synchronized (s_records)
+        {
+            final Iterator<Map.Entry<RetainableByteBuffer, Record>> it = s_records.entrySet().iterator();
+            while (it.hasNext())
+            {
+                final Map.Entry<RetainableByteBuffer, Record> entry = it.next();
+                Record prev = null;
+                Record record = entry.getValue();
+                while (record != null)
+                {
+                    if ((owner == null) || (record.owner == owner))
+                    {
+                        Log.w(LOG_TAG, logPrefix + "leak: " + record.count + " reference(s) not released", record.site);
+                        leaks++;
+                        if (prev == null)
+                            entry.setValue(record.next);
+                        else
+                            prev.next = record.next;
+                    }
+                    else
+                        prev = record;
+                    record = record.next;
+                }
+                if (entry.getValue() == null)
+                    it.remove();
+            }
+        }
+        return leaks;
+    }
+
+    static int reportAll(String logPrefix)
+    {
+        return report(logPrefix, null);
+    }
+}
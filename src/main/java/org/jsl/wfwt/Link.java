@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.Session;
+import org.jsl.collider.TimerQueue;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+class Link
+{
+    /* Collider session shared by all talkgroups two stations have
+     * in common (FEATURE_MUX). Session is opened by one of the talkgroups,
+     * its messages are sent as is, other talkgroups are opened
+     * by the client with ChannelOpen and their messages are wrapped
+     * into ChannelData, so there is one connection, one handshake
+     * of the session and one keepalive per station rather than
+     * per station and talkgroup. Messages of the session are handled
+     * by the ChannelSession of the first talkgroup, it passes
+     * messages of other talkgroups to the link.
+     */
+    private static final String LOG_TAG = "Link";
+
+    private final Connection m_connection;
+    private final LinkManager m_linkManager;
+    private final TimerQueue m_timerQueue;
+    private final ClockSync m_clockSync;
+    private final ReentrantLock m_lock;
+    private final HashMap<Short, Tunnel> m_channels;
+    private volatile ChannelSession [] m_gossipSessions;
+    private short m_channelId;
+    private int m_batchesOpen;
+    private boolean m_closed;
+
+    class Tunnel implements Connection
+    {
+        /* Talkgroup multiplexed over the link */
+        private final short m_channelId;
+        private Session.Listener m_listener;
+
+        private class CloseNotifier implements TimerQueue.Task
+        {
+            public long run()
+            {
+                m_listener.onConnectionClosed();
+                return 0;
+            }
+        }
+
+        Tunnel(short channelId)
+        {
+            m_channelId = channelId;
+        }
+
+        boolean open(String channelName, Session.Listener listener)
+        {
+            /* Listener is set before the remote side knows the channel,
+             * so nothing received for it can be lost.
+             * Returns false if the link is already closed.
+             */
+            final ByteBuffer msg;
+            try
+            {
+                msg = Protocol.ChannelOpen.create(m_channelId, channelName);
+            }
+            catch (final CharacterCodingException ex)
+            {
+                Log.w(LOG_TAG, ex.toString(), ex);
+                removeChannel(this);
+                return false;
+            }
+
+            m_lock.lock();
+            try
+            {
+                if (m_channels.get(m_channelId) != this)
+                    return false;
+                m_listener = listener;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            m_connection.sendData(msg);
+            return true;
+        }
+
+        public SocketAddress getRemoteAddress()
+        {
+            return m_connection.getRemoteAddress();
+        }
+
+        public int sendData(ByteBuffer data)
+        {
+            final RetainableByteBuffer header = Protocol.ChannelData.createHeader(m_channelId, data.remaining());
+            final int ret = m_connection.sendData(header, data);
+            header.release();
+            return ret;
+        }
+
+        public int sendData(RetainableByteBuffer data)
+        {
+            /* Message is sent after the ChannelData header as is, without copying */
+            final RetainableByteBuffer header = Protocol.ChannelData.createHeader(m_channelId, data.remaining());
+            final int ret = m_connection.sendData(header, data);
+            header.release();
+            return ret;
+        }
+
+        public int sendData(RetainableByteBuffer prefix, ByteBuffer data)
+        {
+            /* Links are not created over tunnels, so it is not
+             * on the audio path, just send one joined message.
+             */
+            final ByteBuffer msg = ByteBuffer.allocateDirect(prefix.remaining() + data.remaining());
+            msg.put(prefix.getNioByteBuffer().duplicate());
+            msg.put(data.duplicate());
+            msg.flip();
+            return sendData(msg);
+        }
+
+        public int sendData(RetainableByteBuffer prefix, RetainableByteBuffer data)
+        {
+            return sendData(prefix, data.getNioByteBuffer());
+        }
+
+        public int closeConnection()
+        {
+            /* Listener is notified asynchronously like with the collider session,
+             * closeConnection() can be called by the listener itself.
+             */
+            if (removeChannel(this))
+            {
+                m_connection.sendData(Protocol.ChannelClose.create(m_channelId));
+                m_timerQueue.schedule(new CloseNotifier(), 0, TimeUnit.MILLISECONDS);
+            }
+            return 0;
+        }
+
+        public Session.Listener replaceListener(Session.Listener listener)
+        {
+            m_lock.lock();
+            try
+            {
+                final Session.Listener ret = m_listener;
+                m_listener = listener;
+                return ret;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+        }
+
+        public Link getLink()
+        {
+            return Link.this;
+        }
+
+        public String toString()
+        {
+            return m_connection.getRemoteAddress() + "#" + m_channelId;
+        }
+    }
+
+    Link(Connection connection, LinkManager linkManager, TimerQueue timerQueue, ClockSync clockSync)
+    {
+        m_connection = connection;
+        m_linkManager = linkManager;
+        m_timerQueue = timerQueue;
+        m_clockSync = clockSync;
+        m_lock = new ReentrantLock();
+        m_channels = new HashMap<Short, Tunnel>();
+        m_gossipSessions = new ChannelSession[0];
+    }
+
+    ClockSync getClockSync()
+    {
+        /* Clock offset does not depend on the talkgroup,
+         * it is estimated by the first talkgroup only.
+         */
+        return m_clockSync;
+    }
+
+    Tunnel createChannel()
+    {
+        /* Channel ID is reserved till the channel is opened,
+         * returns null if the link is already closed.
+         */
+        m_lock.lock();
+        try
+        {
+            if (m_closed)
+                return null;
+            do
+            {
+                if (++m_channelId <= 0)
+                    m_channelId = 1;
+            }
+            while (m_channels.containsKey(m_channelId));
+
+            final Tunnel tunnel = new Tunnel(m_channelId);
+            m_channels.put(m_channelId, tunnel);
+            return tunnel;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private boolean removeChannel(Tunnel tunnel)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_channels.get(tunnel.m_channelId) != tunnel)
+                return false;
+            m_channels.remove(tunnel.m_channelId);
+            return true;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void onBatchStateChanged(boolean batchOpen)
+    {
+        /* Called by the talkgroups multiplexed over the link,
+         * the failure detector of the session expects audio frames
+         * if any talkgroup receives audio.
+         */
+        m_lock.lock();
+        try
+        {
+            m_batchesOpen += (batchOpen ? 1 : -1);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void addGossipSession(ChannelSession channelSession)
+    {
+        /* Talkgroups multiplexed over the link have no timer,
+         * their gossip is sent by the timer of the link session.
+         */
+        m_lock.lock();
+        try
+        {
+            final ChannelSession [] sessions = m_gossipSessions;
+            final ChannelSession [] newSessions = Arrays.copyOf(sessions, sessions.length + 1);
+            newSessions[sessions.length] = channelSession;
+            m_gossipSessions = newSessions;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void removeGossipSession(ChannelSession channelSession)
+    {
+        m_lock.lock();
+        try
+        {
+            final ChannelSession [] sessions = m_gossipSessions;
+            final ArrayList<ChannelSession> newSessions = new ArrayList<ChannelSession>(sessions.length);
+            for (ChannelSession session : sessions)
+            {
+                if (session != channelSession)
+                    newSessions.add(session);
+            }
+            m_gossipSessions = newSessions.toArray(new ChannelSession[newSessions.size()]);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void sendGossip(long currentTime)
+    {
+        /* Called by the timer of the link session */
+        for (ChannelSession channelSession : m_gossipSessions)
+            channelSession.sendGossip(currentTime);
+    }
+
+    boolean isBatchOpen()
+    {
+        m_lock.lock();
+        try
+        {
+            return (m_batchesOpen > 0);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /* Messages below are handled in the collider thread */
+
+    void onChannelOpen(RetainableByteBuffer msg)
+    {
+        final short channelId = Protocol.ChannelOpen.getChannelId(msg);
+        String channelName = null;
+        try
+        {
+            channelName = Protocol.ChannelOpen.getChannelName(msg);
+        }
+        catch (final CharacterCodingException ex)
+        {
+            Log.w(LOG_TAG, ex.toString(), ex);
+        }
+
+        final Channel channel = ((channelName == null) ? null : m_linkManager.getChannel(channelName));
+        final Tunnel tunnel = new Tunnel(channelId);
+        final Session.Listener listener = ((channel == null) ? null : channel.acceptConnection(tunnel));
+        if (listener == null)
+        {
+            Log.i(LOG_TAG, m_connection.getRemoteAddress() + ": channel [" + channelName + "] rejected");
+            m_connection.sendData(Protocol.ChannelClose.create(channelId));
+            return;
+        }
+
+        tunnel.m_listener = listener;
+        m_lock.lock();
+        try
+        {
+            m_channels.put(channelId, tunnel);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void onChannelData(RetainableByteBuffer msg)
+    {
+        final short channelId = Protocol.ChannelData.getChannelId(msg);
+        final Session.Listener listener;
+        m_lock.lock();
+        try
+        {
+            final Tunnel tunnel = m_channels.get(channelId);
+            listener = ((tunnel == null) ? null : tunnel.m_listener);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        /* else channel is already closed on this side */
+        if (listener != null)
+        {
+            final RetainableByteBuffer data = Protocol.ChannelData.getData(msg);
+            listener.onDataReceived(data);
+            data.release();
+        }
+    }
+
+    void onChannelClose(RetainableByteBuffer msg)
+    {
+        final short channelId = Protocol.ChannelClose.getChannelId(msg);
+        final Session.Listener listener;
+        m_lock.lock();
+        try
+        {
+            final Tunnel tunnel = m_channels.remove(channelId);
+            listener = ((tunnel == null) ? null : tunnel.m_listener);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (listener != null)
+            listener.onConnectionClosed();
+    }
+
+    void onConnectionClosed()
+    {
+        /* Session is closed, so are all talkgroups multiplexed over it */
+        final ArrayList<Session.Listener> listeners = new ArrayList<Session.Listener>();
+        m_lock.lock();
+        try
+        {
+            m_closed = true;
+            for (Tunnel tunnel : m_channels.values())
+            {
+                if (tunnel.m_listener != null)
+                    listeners.add(tunnel.m_listener);
+            }
+            m_channels.clear();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        for (Session.Listener listener : listeners)
+            listener.onConnectionClosed();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+class LinkManager
+{
+    /* Links to the stations this station connected to by the remote
+     * device ID, a talkgroup connecting to the station opens a channel
+     * over the existing link instead of a new connection.
+     * Stations connect in the same direction for all talkgroups,
+     * so the accepting side never has to open channels.
+     */
+    private final Map<String, Channel> m_channels;
+    private final ReentrantLock m_lock;
+    private final HashMap<String, Link> m_links;
+
+    LinkManager(Map<String, Channel> channels)
+    {
+        /* Channels map is not modified after the start */
+        m_channels = channels;
+        m_lock = new ReentrantLock();
+        m_links = new HashMap<String, Link>();
+    }
+
+    Channel getChannel(String channelName)
+    {
+        return m_channels.get(channelName);
+    }
+
+    Link getLink(String deviceID)
+    {
+        m_lock.lock();
+        try
+        {
+            return m_links.get(deviceID);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void addLink(String deviceID, Link link)
+    {
+        /* Talkgroups can connect to the station at the same time
+         * before any link is established, the first link is used then.
+         */
+        m_lock.lock();
+        try
+        {
+            if (!m_links.containsKey(deviceID))
+                m_links.put(deviceID, link);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void removeLink(String deviceID, Link link)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_links.get(deviceID) == link)
+                m_links.remove(deviceID);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+class LinkStats
+{
+    /* Round trip time statistics of the session based on Ping/Pong.
+     * Keeps last MAX_SAMPLES round trip times (in microseconds)
+     * for percentiles, RFC 3550 style smoothed jitter, and a loss
+     * estimation. Pings are not lost by TCP, but the pong received
+     * later than LATE_RTT is useless for the voice, so such ping
+     * is counted as lost. If the remote clock offset is known
+     * also keeps the latency from the audio frame capture
+     * on the remote station to its receive.
+     * Pings are registered by any thread sending data,
+     * pongs are handled by the collider thread,
+     * snapshot can be taken by any thread.
+     */
+    private static final int MAX_SAMPLES = 256;
+    private static final long LATE_RTT = TimeUnit.SECONDS.toNanos(1);
+
+    static class Snapshot
+    {
+        final int samples;
+        final long rttP50; /* microseconds */
+        final long rttP95;
+        final long rttP99;
+        final long jitter; /* microseconds */
+        final long pingsSent;
+        final long pingsLost;
+        long latencyP50; /* microseconds, 0 if not known */
+        long latencyP95;
+        long latencyP99;
+        long clockOffset; /* microseconds, remote clock minus local clock */
+        long clockError; /* -1 if clock is not synchronized */
+
+        Snapshot(int samples, long rttP50, long rttP95, long rttP99, long jitter, long pingsSent, long pingsLost)
+        {
+            this.samples = samples;
+            this.rttP50 = rttP50;
+            this.rttP95 = rttP95;
+            this.rttP99 = rttP99;
+            this.jitter = jitter;
+            this.pingsSent = pingsSent;
+            this.pingsLost = pingsLost;
+        }
+
+        float getLossRate()
+        {
+            return ((pingsSent == 0) ? 0f : ((float) pingsLost / pingsSent));
+        }
+
+        public String toString()
+        {
+            return "rtt p50=" + rttP50 + "us p95=" + rttP95 + "us p99=" + rttP99 +
+                   "us, jitter=" + jitter + "us, lost " + pingsLost + "/" + pingsSent +
+                   ((clockError < 0) ? "" :
+                    (", clock offset=" + clockOffset + "+-" + clockError + "us" +
+                     ", latency p50=" + latencyP50 + "us p95=" + latencyP95 + "us p99=" + latencyP99 + "us"));
+        }
+    }
+
+    private final int [] m_samples;
+    private int m_idx;
+    private int m_count;
+    private final int [] m_latency;
+    private int m_latencyIdx;
+    private int m_latencyCount;
+    private long m_lastRtt;
+    private long m_jitter; /* nanoseconds, scaled by 16 */
+    private long m_pingsSent;
+    private long m_pingsLost;
+
+    LinkStats()
+    {
+        m_samples = new int[MAX_SAMPLES];
+        m_latency = new int[MAX_SAMPLES];
+        m_lastRtt = -1;
+    }
+
+    synchronized void onFrameLatency(long latency)
+    {
+        /* latency is in microseconds */
+        m_latency[m_latencyIdx] = (int) Math.max(0, Math.min(latency, Integer.MAX_VALUE));
+        if (++m_latencyIdx == MAX_SAMPLES)
+            m_latencyIdx = 0;
+        if (m_latencyCount < MAX_SAMPLES)
+            m_latencyCount++;
+    }
+
+    synchronized void onPingSent()
+    {
+        m_pingsSent++;
+    }
+
+    synchronized void onPongReceived(long rtt)
+    {
+        /* rtt is in nanoseconds */
+        if (rtt > LATE_RTT)
+            m_pingsLost++;
+
+        m_samples[m_idx] = (int) Math.min(TimeUnit.NANOSECONDS.toMicros(rtt), Integer.MAX_VALUE);
+        if (++m_idx == MAX_SAMPLES)
+            m_idx = 0;
+        if (m_count < MAX_SAMPLES)
+            m_count++;
+
+        if (m_lastRtt >= 0)
+        {
+            /* J += (|D| - J) / 16 */
+            final long d = Math.abs(rtt - m_lastRtt);
+            m_jitter += (d - ((m_jitter + 8) >> 4));
+        }
+        m_lastRtt = rtt;
+    }
+
+    Snapshot getSnapshot(ClockSync clockSync)
+    {
+        final int [] samples;
+        final int [] latency;
+        final long jitter;
+        final long pingsSent;
+        final long pingsLost;
+
+        synchronized (this)
+        {
+            samples = Arrays.copyOf(m_samples, m_count);
+            latency = Arrays.copyOf(m_latency, m_latencyCount);
+            jitter = TimeUnit.NANOSECONDS.toMicros(m_jitter >> 4);
+            pingsSent = m_pingsSent;
+            pingsLost = m_pingsLost;
+        }
+
+        final Snapshot snapshot;
+        if (samples.length == 0)
+            snapshot = new Snapshot(0, 0, 0, 0, jitter, pingsSent, pingsLost);
+        else
+        {
+            Arrays.sort(samples);
+            snapshot = new Snapshot(
+                    samples.length,
+                    getPercentile(samples, 50),
+                    getPercentile(samples, 95),
+                    getPercentile(samples, 99),
+                    jitter, pingsSent, pingsLost);
+        }
+
+        if (latency.length > 0)
+        {
+            Arrays.sort(latency);
+            snapshot.latencyP50 = getPercentile(latency, 50);
+            snapshot.latencyP95 = getPercentile(latency, 95);
+            snapshot.latencyP99 = getPercentile(latency, 99);
+        }
+
+        if ((clockSync != null) && clockSync.isSynchronized())
+        {
+            snapshot.clockOffset = clockSync.getOffset();
+            snapshot.clockError = clockSync.getError();
+        }
+        else
+            snapshot.clockError = -1;
+
+        return snapshot;
+    }
+
+    private static long getPercentile(int [] sortedSamples, int percentile)
+    {
+        /* Nearest rank */
+        final int rank = ((sortedSamples.length * percentile + 99) / 100);
+        return sortedSamples[Math.max(rank, 1) - 1];
+    }
+}
@@ -71,4 +71,21 @@ class ListViewRow extends LinearLayout
         m_textViewAddrAndPing.setText( addAndPing );
         m_stateView.setIndicatorState( indicatorState );
     }
+
+    /* Partial updates of the row bound to the same position */
+
+    public void setStationName( String stationName )
+    {
+        m_textViewStationName.setText( stationName );
+    }
+
+    public void setAddrAndPing( String addrAndPing )
+    {
+        m_textViewAddrAndPing.setText( addrAndPing );
+    }
+
+    public void setIndicatorState( int indicatorState )
+    {
+        m_stateView.setIndicatorState( indicatorState );
+    }
 }
@@ -20,6 +20,7 @@ package org.jsl.wfwt;
 
 import android.app.*;
 import android.content.*;
+import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -34,6 +35,9 @@ import android.util.Log;
 import android.view.*;
 import android.widget.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 public class MainActivity extends Activity implements WalkieService.StateListener, Channel.StateListener
 {
     private static final String LOG_TAG = "MainActivity";
@@ -56,6 +60,7 @@ public class MainActivity extends Activity implements WalkieService.StateListene
     private WalkieService.BinderImpl m_binder;
     private AudioRecorder m_audioRecorder;
     private SwitchButton m_buttonTalk;
+    private ColorStateList m_buttonTalkTextColor;
     private boolean m_useVolumeButtonsToTalk;
 
     private boolean m_ptt;
@@ -96,49 +101,155 @@ public class MainActivity extends Activity implements WalkieService.StateListene
         }
     }
 
-    private static class ListViewAdapter extends ArrayAdapter<StationInfo>
+    private static class ListViewAdapter extends ArrayAdapter<StationInfo> implements Choreographer.FrameCallback
     {
+        /* Station list changes come as differences,
+         * they are collected and applied at most once per frame,
+         * only changed rows are updated if no station was added or removed.
+         */
+        private static class Update
+        {
+            final StationInfo [] added;
+            final int [] addedPositions;
+            final StationInfo [] updated;
+            final ChannelSession [] removed;
+
+            Update(StationInfo [] added, int [] addedPositions, StationInfo [] updated, ChannelSession [] removed)
+            {
+                this.added = added;
+                this.addedPositions = addedPositions;
+                this.updated = updated;
+                this.removed = removed;
+            }
+        }
+
         private final MainActivity m_activity;
+        private final ListView m_listView;
         private final LayoutInflater m_inflater;
         private final StringBuilder m_stringBuilder;
-        private StationInfo [] m_stationInfo;
+        private final ArrayList<StationInfo> m_stationInfo;
+        private final ArrayList<Update> m_updates;
+        private final HashMap<ChannelSession, Integer> m_changes;
+        private boolean m_framePosted;
 
-        ListViewAdapter(MainActivity activity)
+        ListViewAdapter(MainActivity activity, ListView listView)
         {
             super(activity, R.layout.list_view_row);
             m_activity = activity;
+            m_listView = listView;
             m_inflater = (LayoutInflater) activity.getSystemService(LAYOUT_INFLATER_SERVICE);
             m_stringBuilder = new StringBuilder();
-            m_stationInfo = new StationInfo[0];
+            m_stationInfo = new ArrayList<StationInfo>();
+            m_updates = new ArrayList<Update>();
+            m_changes = new HashMap<ChannelSession, Integer>();
+        }
+
+        void update(StationInfo [] added, int [] addedPositions, StationInfo [] updated, ChannelSession [] removed)
+        {
+            m_updates.add(new Update(added, addedPositions, updated, removed));
+            if (!m_framePosted)
+            {
+                m_framePosted = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        private int indexOf(ChannelSession channelSession)
+        {
+            final int size = m_stationInfo.size();
+            for (int idx=0; idx<size; idx++)
+            {
+                if (m_stationInfo.get(idx).channelSession == channelSession)
+                    return idx;
+            }
+            return -1;
+        }
+
+        public void doFrame(long frameTimeNanos)
+        {
+            m_framePosted = false;
+
+            boolean dataSetChanged = false;
+            for (Update update : m_updates)
+            {
+                for (ChannelSession channelSession : update.removed)
+                {
+                    final int idx = indexOf(channelSession);
+                    if (idx >= 0)
+                    {
+                        m_stationInfo.remove(idx);
+                        m_changes.remove(channelSession);
+                        dataSetChanged = true;
+                    }
+                }
+
+                /* Positions are ascending and refer to the list
+                 * with removed stations already gone, so the list
+                 * keeps the order of the channel (sorted by service name).
+                 */
+                for (int idx=0; idx<update.added.length; idx++)
+                {
+                    final int position = Math.min(update.addedPositions[idx], m_stationInfo.size());
+                    m_stationInfo.add(position, update.added[idx]);
+                    dataSetChanged = true;
+                }
+
+                for (StationInfo stationInfo : update.updated)
+                {
+                    final int idx = indexOf(stationInfo.channelSession);
+                    if (idx >= 0)
+                    {
+                        m_stationInfo.set(idx, stationInfo);
+                        final Integer changes = m_changes.get(stationInfo.channelSession);
+                        m_changes.put(stationInfo.channelSession,
+                                ((changes == null) ? stationInfo.changes : (changes | stationInfo.changes)));
+                    }
+                }
+            }
+            m_updates.clear();
+
+            if (dataSetChanged)
+                notifyDataSetChanged();
+            else if (!m_changes.isEmpty())
+            {
+                /* Rebind only visible rows of the changed stations */
+                final int firstPosition = m_listView.getFirstVisiblePosition();
+                final int childCount = m_listView.getChildCount();
+                for (int idx=0; idx<childCount; idx++)
+                {
+                    final int position = (firstPosition + idx);
+                    if (position >= m_stationInfo.size())
+                        break;
+                    final StationInfo stationInfo = m_stationInfo.get(position);
+                    final Integer changes = m_changes.get(stationInfo.channelSession);
+                    final View view = m_listView.getChildAt(idx);
+                    if ((changes != null) && (view instanceof ListViewRow))
+                        updateRow((ListViewRow) view, stationInfo, changes);
+                }
+            }
+            m_changes.clear();
         }
 
-        void setStationInfo(StationInfo [] stationInfo)
+        public void clear()
         {
-            m_stationInfo = stationInfo;
+            m_stationInfo.clear();
+            m_updates.clear();
+            m_changes.clear();
             notifyDataSetChanged();
         }
 
         public int getCount()
         {
-            return m_stationInfo.length;
+            return m_stationInfo.size();
         }
 
         public StationInfo getItem( int position )
         {
-            return m_stationInfo[position];
+            return m_stationInfo.get(position);
         }
 
-        public View getView( int position, View convertView, ViewGroup parent )
+        private String getAddrAndPing(StationInfo stationInfo)
         {
-            ListViewRow rowView = (ListViewRow) convertView;
-            if (rowView == null)
-            {
-                rowView = (ListViewRow) m_inflater.inflate( R.layout.list_view_row, null, true );
-                rowView.init( m_activity );
-            }
-
-            final StationInfo stationInfo = m_stationInfo[position];
-
             m_stringBuilder.setLength(0);
             m_stringBuilder.append(stationInfo.addr);
             final long ping = stationInfo.ping;
@@ -147,9 +258,40 @@ public class MainActivity extends Activity implements WalkieService.StateListene
                 m_stringBuilder.append(", ");
                 m_stringBuilder.append(stationInfo.ping);
                 m_stringBuilder.append(" ms");
+
+                final LinkStats.Snapshot linkStats = stationInfo.linkStats;
+                if ((linkStats != null) && (linkStats.samples > 0))
+                {
+                    /* p95 of one way delay, to be comparable with the ping */
+                    m_stringBuilder.append(" (p95 ");
+                    m_stringBuilder.append(linkStats.rttP95 / 2000);
+                    m_stringBuilder.append(" ms)");
+                }
             }
+            return m_stringBuilder.toString();
+        }
 
-            rowView.setData(position, stationInfo.name, m_stringBuilder.toString(), stationInfo.transmission);
+        private void updateRow(ListViewRow rowView, StationInfo stationInfo, int changes)
+        {
+            if ((changes & StationInfo.CHANGED_NAME) != 0)
+                rowView.setStationName(stationInfo.name);
+            if ((changes & StationInfo.CHANGED_PING) != 0)
+                rowView.setAddrAndPing(getAddrAndPing(stationInfo));
+            if ((changes & StationInfo.CHANGED_STATE) != 0)
+                rowView.setIndicatorState(stationInfo.transmission);
+        }
+
+        public View getView( int position, View convertView, ViewGroup parent )
+        {
+            ListViewRow rowView = (ListViewRow) convertView;
+            if (rowView == null)
+            {
+                rowView = (ListViewRow) m_inflater.inflate( R.layout.list_view_row, null, true );
+                rowView.init( m_activity );
+            }
+
+            final StationInfo stationInfo = m_stationInfo.get(position);
+            rowView.setData(position, stationInfo.name, getAddrAndPing(stationInfo), stationInfo.transmission);
             return rowView;
         }
     }
@@ -301,11 +443,38 @@ public class MainActivity extends Activity implements WalkieService.StateListene
         });
     }
 
-    public void onStationListChanged(final StationInfo [] stationInfo)
+    public void onStationListChanged(
+            final StationInfo [] added, final int [] addedPositions,
+            final StationInfo [] updated, final ChannelSession [] removed)
+    {
+        runOnUiThread( new Runnable() {
+            public void run() {
+                m_listViewAdapter.update(added, addedPositions, updated, removed);
+            }
+        });
+    }
+
+    public void onFloorStateChanged(final int floorState)
     {
         runOnUiThread( new Runnable() {
             public void run() {
-                m_listViewAdapter.setStationInfo(stationInfo);
+                if (m_buttonTalk == null)
+                    return;
+                if (floorState == FloorControl.FLOOR_BUSY)
+                {
+                    m_buttonTalk.setText(R.string.floor_busy);
+                    m_buttonTalk.setTextColor(Color.YELLOW);
+                }
+                else if (floorState == FloorControl.FLOOR_WAIT)
+                {
+                    m_buttonTalk.setText(R.string.floor_wait);
+                    m_buttonTalk.setTextColor(Color.YELLOW);
+                }
+                else
+                {
+                    m_buttonTalk.setText(R.string.push_to_talk);
+                    m_buttonTalk.setTextColor(m_buttonTalkTextColor);
+                }
             }
         });
     }
@@ -319,14 +488,15 @@ public class MainActivity extends Activity implements WalkieService.StateListene
 
         setContentView( R.layout.main );
 
-        m_listViewAdapter = new ListViewAdapter( this );
         final ListView listView = (ListView) findViewById( R.id.listView );
+        m_listViewAdapter = new ListViewAdapter( this, listView );
         listView.setAdapter( m_listViewAdapter );
 
         final TextView textView = (TextView) findViewById( R.id.textViewStatus );
         textView.setTextColor( Color.GREEN );
 
         m_buttonTalk = (SwitchButton) findViewById( R.id.buttonTalk );
+        m_buttonTalkTextColor = m_buttonTalk.getTextColors();
     }
 
     public boolean onCreateOptionsMenu( Menu menu )
@@ -383,6 +553,15 @@ public class MainActivity extends Activity implements WalkieService.StateListene
             }
             break;
 
+            case R.id.actionEmergency:
+                if (m_audioRecorder != null)
+                {
+                    /* Next transmission will preempt audio queued on the receivers */
+                    item.setChecked( !item.isChecked() );
+                    m_audioRecorder.setPriority( item.isChecked() );
+                }
+            break;
+
             case R.id.actionExit:
                 m_exit = true;
                 finish();
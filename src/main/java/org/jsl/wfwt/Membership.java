@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+class Membership
+{
+    /* Roster of all stations of the channel, including ones
+     * we are not connected to directly. Each station increments
+     * own heartbeat every gossip interval and sends the roster
+     * with the keepalive pings of its sessions, receivers keep
+     * the highest heartbeat seen for each station. Station which heartbeat was not updated
+     * for SUSPECT_INTERVALS is considered dead, and forgotten
+     * after REMOVE_INTERVALS.
+     */
+    private static final String LOG_TAG = Membership.class.getSimpleName();
+
+    private static final int SUSPECT_INTERVALS = 8;
+    private static final int REMOVE_INTERVALS = 16;
+
+    static class Member
+    {
+        final String serviceName;
+        String stationName;
+        int heartbeat;
+        long updateTime;
+        boolean alive;
+
+        Member(String serviceName)
+        {
+            this.serviceName = serviceName;
+        }
+    }
+
+    private final String m_logPrefix;
+    private final long m_interval;
+    private final ReentrantLock m_lock;
+    private final HashMap<String, Member> m_members;
+    private int m_heartbeat;
+
+    Membership(String logPrefix, long interval)
+    {
+        m_logPrefix = logPrefix;
+        m_interval = interval;
+        m_lock = new ReentrantLock();
+        m_members = new HashMap<String, Member>();
+        /* Heartbeat should grow after the restart as well */
+        m_heartbeat = (int) (System.currentTimeMillis() / interval);
+    }
+
+    List<Protocol.Gossip.Entry> tick(String serviceName, String stationName, long currentTime)
+    {
+        /* Called every gossip interval,
+         * returns entries to be sent to other stations.
+         */
+        final ArrayList<Protocol.Gossip.Entry> entries = new ArrayList<Protocol.Gossip.Entry>();
+        entries.add(new Protocol.Gossip.Entry(serviceName, ++m_heartbeat, stationName));
+
+        m_lock.lock();
+        try
+        {
+            final Iterator<Member> it = m_members.values().iterator();
+            while (it.hasNext())
+            {
+                final Member member = it.next();
+                final long silence = (currentTime - member.updateTime);
+                if (silence > (m_interval * REMOVE_INTERVALS))
+                {
+                    Log.i(LOG_TAG, m_logPrefix + "forget [" + member.serviceName + "]");
+                    it.remove();
+                }
+                else if (silence > (m_interval * SUSPECT_INTERVALS))
+                {
+                    if (member.alive)
+                    {
+                        Log.i(LOG_TAG, m_logPrefix + "suspect [" + member.serviceName + "]");
+                        member.alive = false;
+                    }
+                }
+                else
+                    entries.add(new Protocol.Gossip.Entry(member.serviceName, member.heartbeat, member.stationName));
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        return entries;
+    }
+
+    void merge(String localServiceName, List<Protocol.Gossip.Entry> entries, long currentTime)
+    {
+        m_lock.lock();
+        try
+        {
+            for (Protocol.Gossip.Entry entry : entries)
+            {
+                if (entry.serviceName.equals(localServiceName))
+                    continue;
+
+                Member member = m_members.get(entry.serviceName);
+                if (member == null)
+                {
+                    member = new Member(entry.serviceName);
+                    m_members.put(entry.serviceName, member);
+                    Log.i(LOG_TAG, m_logPrefix + "join [" + entry.serviceName + "] " + entry.stationName);
+                }
+                else if ((entry.heartbeat - member.heartbeat) <= 0)
+                {
+                    /* Nothing new */
+                    continue;
+                }
+                else if (!member.alive)
+                    Log.i(LOG_TAG, m_logPrefix + "alive [" + entry.serviceName + "]");
+
+                member.stationName = entry.stationName;
+                member.heartbeat = entry.heartbeat;
+                member.updateTime = currentTime;
+                member.alive = true;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    Member [] getMembers()
+    {
+        m_lock.lock();
+        try
+        {
+            final Member [] ret = new Member[m_members.size()];
+            int idx = 0;
+            for (Member member : m_members.values())
+            {
+                final Member copy = new Member(member.serviceName);
+                copy.stationName = member.stationName;
+                copy.heartbeat = member.heartbeat;
+                copy.updateTime = member.updateTime;
+                copy.alive = member.alive;
+                ret[idx++] = copy;
+            }
+            return ret;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+class PeerCache
+{
+    /* Keeps last known addresses of the stations (keyed by the service name,
+     * which contains the device ID), so the channel can connect to them
+     * at startup without waiting for the NSD discovery and resolve.
+     * Value format is "<time> <port> <host> [<failures>]",
+     * failures is a number of connect failures in a row.
+     */
+    private static final String LOG_TAG = PeerCache.class.getSimpleName();
+
+    private static final String KEY_LOCAL_PORT = "local_port:";
+    private static final String PEER_PREFIX = "peer:";
+    private static final long MAX_AGE = (24 * 60 * 60 * 1000);
+    private static final int MAX_ENTRIES = 64;
+    private static final int MAX_CONNECT_FAILURES = 3;
+
+    private final SharedPreferences m_sharedPreferences;
+
+    PeerCache(SharedPreferences sharedPreferences)
+    {
+        m_sharedPreferences = sharedPreferences;
+    }
+
+    int getLocalPort(String channelName)
+    {
+        return m_sharedPreferences.getInt(KEY_LOCAL_PORT + channelName, 0);
+    }
+
+    void setLocalPort(String channelName, int localPort)
+    {
+        m_sharedPreferences.edit().putInt(KEY_LOCAL_PORT + channelName, localPort).apply();
+    }
+
+    private static InetSocketAddress parse(String value, long minTime)
+    {
+        final String [] ss = value.split(" ");
+        if ((ss.length != 3) && (ss.length != 4))
+            return null;
+        try
+        {
+            final long time = Long.parseLong(ss[0]);
+            if (time < minTime)
+                return null;
+            final int port = Integer.parseInt(ss[1]);
+            return new InetSocketAddress(ss[2], port);
+        }
+        catch (final IllegalArgumentException ex)
+        {
+            /* NumberFormatException or invalid port */
+            Log.w(LOG_TAG, ex.toString());
+            return null;
+        }
+    }
+
+    Map<String, InetSocketAddress> getAll()
+    {
+        final HashMap<String, InetSocketAddress> ret = new HashMap<String, InetSocketAddress>();
+        final long minTime = (System.currentTimeMillis() - MAX_AGE);
+        SharedPreferences.Editor editor = null;
+
+        for (Map.Entry<String, ?> entry : m_sharedPreferences.getAll().entrySet())
+        {
+            final String key = entry.getKey();
+            if (key.startsWith(PEER_PREFIX))
+            {
+                final Object value = entry.getValue();
+                final InetSocketAddress addr = (value instanceof String) ? parse((String) value, minTime) : null;
+                if (addr == null)
+                {
+                    if (editor == null)
+                        editor = m_sharedPreferences.edit();
+                    editor.remove(key);
+                }
+                else
+                    ret.put(key.substring(PEER_PREFIX.length()), addr);
+            }
+        }
+
+        if (editor != null)
+            editor.apply();
+
+        return ret;
+    }
+
+    InetSocketAddress get(String serviceName)
+    {
+        final String value = m_sharedPreferences.getString(PEER_PREFIX + serviceName, null);
+        if (value == null)
+            return null;
+        return parse(value, System.currentTimeMillis() - MAX_AGE);
+    }
+
+    void put(String serviceName, InetSocketAddress addr)
+    {
+        final Map<String, ?> all = m_sharedPreferences.getAll();
+        final SharedPreferences.Editor editor = m_sharedPreferences.edit();
+
+        if (all.size() > MAX_ENTRIES)
+        {
+            /* Too many stations seen, forget all but the current one */
+            for (String key : all.keySet())
+            {
+                if (key.startsWith(PEER_PREFIX))
+                    editor.remove(key);
+            }
+        }
+
+        final String value =
+                System.currentTimeMillis() + " " + addr.getPort() + " " + addr.getAddress().getHostAddress();
+        editor.putString(PEER_PREFIX + serviceName, value);
+        editor.apply();
+    }
+
+    void onConnectFailed(String serviceName)
+    {
+        /* Channel can start before the WiFi is up, so one failure
+         * does not mean the station is gone: the entry is removed
+         * after a few failures in a row or when it is too old.
+         */
+        final String key = (PEER_PREFIX + serviceName);
+        final String value = m_sharedPreferences.getString(key, null);
+        if (value == null)
+            return;
+
+        final String [] ss = value.split(" ");
+        int failures = MAX_CONNECT_FAILURES;
+        if (ss.length == 3)
+            failures = 1;
+        else if (ss.length == 4)
+        {
+            try
+            {
+                failures = (Integer.parseInt(ss[3]) + 1);
+            }
+            catch (final NumberFormatException ex)
+            {
+                Log.w(LOG_TAG, ex.toString());
+            }
+        }
+
+        if (failures >= MAX_CONNECT_FAILURES)
+        {
+            Log.i(LOG_TAG, serviceName + ": " + failures + " connect failures, forget the address");
+            m_sharedPreferences.edit().remove(key).apply();
+        }
+        else
+        {
+            /* Time is kept, so the entry still ages out */
+            final String newValue = ss[0] + " " + ss[1] + " " + ss[2] + " " + failures;
+            m_sharedPreferences.edit().putString(key, newValue).apply();
+        }
+    }
+}
@@ -19,6 +19,8 @@
 package org.jsl.wfwt;
 
 import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferCache;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
@@ -27,6 +29,8 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
 
 class Protocol
 {
@@ -37,10 +41,89 @@ class Protocol
     private static final short MSG_PING                 = 0x0005;
     private static final short MSG_PONG                 = 0x0006;
     private static final short MSG_STATION_NAME         = 0x0007;
+    private static final short MSG_BATCH                = 0x0008;
+    private static final short MSG_RESUME_REQUEST       = 0x0009;
+    private static final short MSG_RESUME_REJECTED      = 0x000A;
+    private static final short MSG_GOSSIP               = 0x000B;
+    private static final short MSG_KEEPALIVE_INTERVAL   = 0x000C;
+    private static final short MSG_CLOCK_PING           = 0x000D;
+    private static final short MSG_CLOCK_PONG           = 0x000E;
+    private static final short MSG_CHANNEL_OPEN         = 0x000F;
+    private static final short MSG_CHANNEL_DATA         = 0x0010;
+    private static final short MSG_CHANNEL_CLOSE        = 0x0011;
+    private static final short MSG_FLOOR_REQUEST        = 0x0012;
+    private static final short MSG_FLOOR_GRANT          = 0x0013;
+    private static final short MSG_FLOOR_BUSY           = 0x0014;
+    private static final short MSG_FLOOR_RELEASE        = 0x0015;
 
-    static final byte VERSION = 3;
+    /* Optional features negotiated with handshake */
+    static final short FEATURE_BATCH = 0x0001;
+    static final short FEATURE_RESUME = 0x0002;
+    static final short FEATURE_GOSSIP = 0x0004;
+    static final short FEATURE_KEEPALIVE = 0x0008;
+    static final short FEATURE_CLOCK_SYNC = 0x0010;
+    static final short FEATURE_MUX = 0x0020;
+    static final short FEATURE_FLOOR = 0x0040;
+    static final short FEATURES =
+            (FEATURE_BATCH | FEATURE_RESUME | FEATURE_GOSSIP | FEATURE_KEEPALIVE |
+             FEATURE_CLOCK_SYNC | FEATURE_MUX | FEATURE_FLOOR);
+
+    static final byte VERSION = 5;
     static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
+    /* Ping and Pong are sent every ping interval by each session,
+     * so let's reuse buffers for them, and for small batches as well.
+     * Buffer returns to the cache when the collider releases it
+     * after the data is sent. Only these messages are pooled:
+     * batches larger than SMALL_BATCH_SIZE and all other messages
+     * (handshake, station name, gossip...) still allocate a buffer.
+     */
+    private static final int PING_MESSAGE_SIZE = (Message.HEADER_SIZE + (Integer.SIZE / Byte.SIZE));
+    private static final int SMALL_BATCH_SIZE = 256;
+
+    private static final RetainableByteBufferCache s_pingCache
+            = new RetainableByteBufferCache(true, PING_MESSAGE_SIZE, BYTE_ORDER, 64);
+
+    private static final RetainableByteBufferCache s_smallBatchCache
+            = new RetainableByteBufferCache(true, SMALL_BATCH_SIZE, BYTE_ORDER, 16);
+
+    /* ChannelData header is sent before every message of a multiplexed
+     * talkgroup (see Link), the message itself is not copied.
+     */
+    private static final int CHANNEL_HEADER_SIZE = (Message.HEADER_SIZE + (Short.SIZE / Byte.SIZE));
+
+    private static final RetainableByteBufferCache s_channelHeaderCache
+            = new RetainableByteBufferCache(true, CHANNEL_HEADER_SIZE, BYTE_ORDER, 64);
+
+    /* Encoder and decoder are not thread safe,
+     * messages can be handled by any collider thread.
+     */
+    private static final ThreadLocal<CharsetEncoder> s_encoder = new ThreadLocal<CharsetEncoder>()
+    {
+        protected CharsetEncoder initialValue()
+        {
+            return Charset.defaultCharset().newEncoder();
+        }
+    };
+
+    private static final ThreadLocal<CharsetDecoder> s_decoder = new ThreadLocal<CharsetDecoder>()
+    {
+        protected CharsetDecoder initialValue()
+        {
+            return Charset.defaultCharset().newDecoder();
+        }
+    };
+
+    static CharsetEncoder getEncoder()
+    {
+        return s_encoder.get();
+    }
+
+    static CharsetDecoder getDecoder()
+    {
+        return s_decoder.get();
+    }
+
     static class Message
     {
         /* message size (short) + message type (short) */
@@ -79,6 +162,18 @@ class Protocol
         {
             return msg.getShort(msg.position() + 2);
         }
+
+        static short getFeatures(RetainableByteBuffer msg, int offs)
+        {
+            /* Features are optional and follow the last field of the message,
+             * zero if the other side did not send them.
+             */
+            final int pos = msg.position();
+            final short messageSize = msg.getShort(pos);
+            if ((offs + (Short.SIZE / Byte.SIZE)) > messageSize)
+                return 0;
+            return msg.getShort(pos + offs);
+        }
     }
 
     static class HandshakeRequest extends Message
@@ -88,20 +183,22 @@ class Protocol
          * str   : audio format
          * short : station name length
          * short : station name
+         * short : features
          */
         static final short ID = MSG_HANDSHAKE_REQUEST;
 
-        static ByteBuffer create(String audioFormat, String stationName) throws CharacterCodingException
+        static ByteBuffer create(String audioFormat, String stationName, short features) throws CharacterCodingException
         {
-            final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+            final CharsetEncoder encoder = getEncoder();
             final ByteBuffer audioFormatBB = encoder.encode(CharBuffer.wrap(audioFormat));
             final ByteBuffer stationNameBB = encoder.encode(CharBuffer.wrap(stationName));
-            final ByteBuffer msg = create(ID, (short) (2 + 2 + audioFormatBB.remaining() + 2 + stationNameBB.remaining()));
+            final ByteBuffer msg = create(ID, (short) (2 + 2 + audioFormatBB.remaining() + 2 + stationNameBB.remaining() + 2));
             msg.putShort(VERSION);
             msg.putShort((short) audioFormatBB.remaining());
             msg.put(audioFormatBB);
             msg.putShort((short) stationNameBB.remaining());
             msg.put(stationNameBB);
+            msg.putShort(features);
             msg.rewind();
             return msg;
         }
@@ -122,7 +219,7 @@ class Protocol
                 final short audioFormatLength = msg.getShort();
                 if (audioFormatLength > 0)
                 {
-                    final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
+                    final CharsetDecoder decoder = getDecoder();
                     msg.limit(msg.position() + audioFormatLength);
                     ret = decoder.decode(msg.getNioByteBuffer()).toString();
                 }
@@ -139,6 +236,7 @@ class Protocol
         {
             String ret = null;
             final int pos = msg.position();
+            final int limit = msg.limit();
             try
             {
                 final short audioFormatLength = msg.getShort(pos + Message.HEADER_SIZE + 2);
@@ -146,7 +244,7 @@ class Protocol
                 final short stationNameLength = msg.getShort();
                 if (stationNameLength > 0)
                 {
-                    final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
+                    final CharsetDecoder decoder = getDecoder();
                     msg.limit(msg.position() + stationNameLength);
                     ret = decoder.decode(msg.getNioByteBuffer()).toString();
                 }
@@ -154,9 +252,19 @@ class Protocol
             finally
             {
                 msg.position(pos);
+                msg.limit(limit);
             }
             return ret;
         }
+
+        static short getFeatures(RetainableByteBuffer msg)
+        {
+            final int pos = msg.position();
+            final short audioFormatLength = msg.getShort(pos + Message.HEADER_SIZE + 2);
+            final int offs = (Message.HEADER_SIZE + 2 + 2 + audioFormatLength);
+            final short stationNameLength = msg.getShort(pos + offs);
+            return getFeatures(msg, offs + 2 + stationNameLength);
+        }
     }
 
     static class HandshakeReplyOk extends Message
@@ -165,23 +273,54 @@ class Protocol
          * str   : audio format
          * short : station name length
          * short : station name
+         * short : features
+         * long  : resumption token (if FEATURE_RESUME negotiated)
          */
         static final short ID = MSG_HANDSHAKE_REPLY_OK;
 
-        static ByteBuffer create(String audioFormat, String stationName) throws CharacterCodingException
+        static ByteBuffer create(String audioFormat, String stationName, short features, long resumptionToken)
+                throws CharacterCodingException
         {
-            final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+            final CharsetEncoder encoder = getEncoder();
             final ByteBuffer audioFormatBB = encoder.encode(CharBuffer.wrap(audioFormat));
             final ByteBuffer stationNameBB = encoder.encode(CharBuffer.wrap(stationName));
-            final ByteBuffer msg = create(ID, (short) (2 + audioFormatBB.remaining() + 2 + stationNameBB.remaining()));
+            final int tokenSize = ((resumptionToken == 0) ? 0 : (Long.SIZE / Byte.SIZE));
+            final ByteBuffer msg = create(ID, (short) (2 + audioFormatBB.remaining() + 2 + stationNameBB.remaining() + 2 + tokenSize));
             msg.putShort((short) audioFormatBB.remaining());
             msg.put(audioFormatBB);
             msg.putShort((short) stationNameBB.remaining());
             msg.put(stationNameBB);
+            msg.putShort(features);
+            if (tokenSize > 0)
+                msg.putLong(resumptionToken);
             msg.rewind();
             return msg;
         }
 
+        private static int getFeaturesOffset(RetainableByteBuffer msg)
+        {
+            final int pos = msg.position();
+            final short audioFormatLength = msg.getShort(pos + Message.HEADER_SIZE);
+            final int offs = (Message.HEADER_SIZE + 2 + audioFormatLength);
+            final short stationNameLength = msg.getShort(pos + offs);
+            return (offs + 2 + stationNameLength);
+        }
+
+        static short getFeatures(RetainableByteBuffer msg)
+        {
+            return getFeatures(msg, getFeaturesOffset(msg));
+        }
+
+        static long getResumptionToken(RetainableByteBuffer msg)
+        {
+            final int pos = msg.position();
+            final int offs = (getFeaturesOffset(msg) + 2);
+            final short messageSize = msg.getShort(pos);
+            if ((offs + (Long.SIZE / Byte.SIZE)) > messageSize)
+                return 0;
+            return msg.getNioByteBuffer().getLong(pos + offs);
+        }
+
         static String getAudioFormat(RetainableByteBuffer msg) throws CharacterCodingException
         {
             String ret = null;
@@ -193,7 +332,7 @@ class Protocol
                 final short audioFormatLength = msg.getShort();
                 if (audioFormatLength > 0)
                 {
-                    final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
+                    final CharsetDecoder decoder = getDecoder();
                     msg.limit(msg.position() + audioFormatLength);
                     ret = decoder.decode(msg.getNioByteBuffer()).toString();
                 }
@@ -218,7 +357,7 @@ class Protocol
                 final short stationNameLength = msg.getShort();
                 if (stationNameLength > 0)
                 {
-                    final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
+                    final CharsetDecoder decoder = getDecoder();
                     msg.limit(msg.position() + stationNameLength);
                     ret = decoder.decode(msg.getNioByteBuffer()).toString();
                 }
@@ -241,7 +380,7 @@ class Protocol
 
         static ByteBuffer create(String statusText) throws CharacterCodingException
         {
-            final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+            final CharsetEncoder encoder = getEncoder();
             final ByteBuffer bb = encoder.encode(CharBuffer.wrap(statusText));
             final ByteBuffer msg = create(ID, (short) (2 + 2 + bb.remaining()));
             msg.putShort((short) bb.remaining());
@@ -260,7 +399,7 @@ class Protocol
                 final short length = msg.getShort();
                 if (length > 0)
                 {
-                    final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
+                    final CharsetDecoder decoder = getDecoder();
                     ret = decoder.decode(msg.getNioByteBuffer()).toString();
                 }
             }
@@ -272,31 +411,419 @@ class Protocol
         }
     }
 
+    static class Gossip extends Message
+    {
+        /* Membership digest sent periodically to a few random sessions.
+         * short : number of entries
+         * for each entry:
+         *   short : service name length
+         *   str   : service name
+         *   int   : heartbeat
+         *   short : station name length
+         *   str   : station name
+         */
+        static final short ID = MSG_GOSSIP;
+
+        static class Entry
+        {
+            final String serviceName;
+            final int heartbeat;
+            final String stationName;
+
+            Entry(String serviceName, int heartbeat, String stationName)
+            {
+                this.serviceName = serviceName;
+                this.heartbeat = heartbeat;
+                this.stationName = stationName;
+            }
+        }
+
+        static RetainableByteBuffer create(List<Entry> entries) throws CharacterCodingException
+        {
+            final CharsetEncoder encoder = getEncoder();
+            final ArrayList<ByteBuffer> strings = new ArrayList<ByteBuffer>(entries.size() * 2);
+            int dataSize = 2;
+            int count = 0;
+            for (Entry entry : entries)
+            {
+                final ByteBuffer serviceNameBB = encoder.encode(CharBuffer.wrap(entry.serviceName));
+                final ByteBuffer stationNameBB = encoder.encode(CharBuffer.wrap(entry.stationName));
+                final int entrySize = (2 + serviceNameBB.remaining() + 4 + 2 + stationNameBB.remaining());
+                if ((HEADER_SIZE + dataSize + entrySize) > Short.MAX_VALUE)
+                {
+                    /* Rest of entries will be sent next time to another sessions */
+                    break;
+                }
+                strings.add(serviceNameBB);
+                strings.add(stationNameBB);
+                dataSize += entrySize;
+                count++;
+            }
+
+            final RetainableByteBuffer msg = createEx(ID, (short) dataSize);
+            msg.putShort((short) count);
+            for (int idx=0; idx<count; idx++)
+            {
+                final ByteBuffer serviceNameBB = strings.get(idx * 2);
+                final ByteBuffer stationNameBB = strings.get(idx * 2 + 1);
+                msg.putShort((short) serviceNameBB.remaining());
+                msg.put(serviceNameBB);
+                msg.putInt(entries.get(idx).heartbeat);
+                msg.putShort((short) stationNameBB.remaining());
+                msg.put(stationNameBB);
+            }
+            msg.rewind();
+            return msg;
+        }
+
+        private static String getString(ByteBuffer bb, CharsetDecoder decoder) throws CharacterCodingException
+        {
+            final short length = bb.getShort();
+            if ((length < 0) || (length > bb.remaining()))
+                throw new BufferUnderflowException();
+            final int limit = bb.limit();
+            bb.limit(bb.position() + length);
+            final String ret = decoder.decode(bb).toString();
+            bb.limit(limit);
+            return ret;
+        }
+
+        static ArrayList<Entry> getEntries(RetainableByteBuffer msg) throws CharacterCodingException
+        {
+            final CharsetDecoder decoder = getDecoder();
+            final int pos = msg.position();
+            final ByteBuffer bb = msg.getNioByteBuffer().duplicate();
+            bb.limit(pos + msg.getShort(pos));
+            bb.position(pos + HEADER_SIZE);
+
+            /* Each entry takes at least 8 bytes (two empty strings and heartbeat) */
+            final int count = bb.getShort();
+            if ((count < 0) || (count > (bb.remaining() / 8)))
+                throw new BufferUnderflowException();
+            final ArrayList<Entry> ret = new ArrayList<Entry>(count);
+            for (int idx=0; idx<count; idx++)
+            {
+                final String serviceName = getString(bb, decoder);
+                final int heartbeat = bb.getInt();
+                final String stationName = getString(bb, decoder);
+                ret.add(new Entry(serviceName, heartbeat, stationName));
+            }
+            return ret;
+        }
+    }
+
+    static class ResumeRequest extends Message
+    {
+        /* Sent by the client instead of the HandshakeRequest
+         * when it has a token received with the previous HandshakeReplyOk.
+         * short : protocol version
+         * short : features
+         * long  : resumption token
+         */
+        static final short ID = MSG_RESUME_REQUEST;
+
+        static ByteBuffer create(short features, long resumptionToken)
+        {
+            final ByteBuffer msg = create(ID, (short) (2 + 2 + (Long.SIZE / Byte.SIZE)));
+            msg.putShort(VERSION);
+            msg.putShort(features);
+            msg.putLong(resumptionToken);
+            msg.rewind();
+            return msg;
+        }
+
+        static short getProtocolVersion(RetainableByteBuffer msg)
+        {
+            return msg.getShort(msg.position() + HEADER_SIZE);
+        }
+
+        static short getFeatures(RetainableByteBuffer msg)
+        {
+            return msg.getShort(msg.position() + HEADER_SIZE + 2);
+        }
+
+        static long getResumptionToken(RetainableByteBuffer msg)
+        {
+            return msg.getNioByteBuffer().getLong(msg.position() + HEADER_SIZE + 2 + 2);
+        }
+    }
+
+    static class ResumeRejected extends Message
+    {
+        /* Token is unknown or expired,
+         * client is expected to continue with the full handshake.
+         */
+        static final short ID = MSG_RESUME_REJECTED;
+
+        static ByteBuffer create()
+        {
+            final ByteBuffer msg = create(ID, (short) 0);
+            msg.rewind();
+            return msg;
+        }
+    }
+
     static class AudioFrame extends Message
     {
-        /* short : batch start indicator (use short for better alignment) */
+        /* short : flags (use short for better alignment)
+         *   FLAG_BATCH_START : batch start indicator
+         *   FLAG_HALF_RATE   : every pair of samples is averaged into one sample,
+         *                      receiver has to duplicate samples back
+         *   FLAG_RECOVERY    : frame is prepended with a low rate copy
+         *                      of the previous frame which was not sent
+         *   FLAG_TIMESTAMP   : frame contains a capture time
+         *                      (only if FEATURE_CLOCK_SYNC negotiated)
+         *   FLAG_PRIORITY    : emergency transmission, receiver drops
+         *                      audio queued before the batch start
+         * if FLAG_TIMESTAMP is set:
+         *   long  : capture time of the first sample (sender clock, microseconds)
+         * if FLAG_RECOVERY is set:
+         *   short : recovery data size
+         *   short : recovery data rate shift (samples are averaged by 1 << shift)
+         *   data  : recovery data
+         * data  : audio data
+         */
         static final short ID = MSG_AUDIO_FRAME;
 
+        static final short FLAG_BATCH_START = 0x0001;
+        static final short FLAG_HALF_RATE   = 0x0002;
+        static final short FLAG_RECOVERY    = 0x0004;
+        static final short FLAG_TIMESTAMP   = 0x0008;
+        static final short FLAG_PRIORITY    = 0x0010;
+
+        /* recovery data size + rate shift */
+        private static final int RECOVERY_HEADER_SIZE = ((Short.SIZE / Byte.SIZE) * 2);
+        static final int TIMESTAMP_SIZE = (Long.SIZE / Byte.SIZE);
+
         static int getMessageSize(int frameSize)
         {
-            return HEADER_SIZE + /*batch start*/(Short.SIZE / Byte.SIZE) + frameSize;
+            return HEADER_SIZE + /*flags*/(Short.SIZE / Byte.SIZE) + frameSize;
+        }
+
+        private static int getDataOffset(short flags)
+        {
+            /* Offset of the recovery header or audio data */
+            return getMessageSize(((flags & FLAG_TIMESTAMP) != 0) ? TIMESTAMP_SIZE : 0);
         }
 
         static void init(ByteBuffer byteBuffer, boolean batchStart, int frameSize)
         {
             Message.init(byteBuffer, (short) getMessageSize(frameSize), ID);
-            byteBuffer.putShort((short)(batchStart ? 1 : 0));
+            byteBuffer.putShort((batchStart ? FLAG_BATCH_START : 0));
+        }
+
+        static void init(ByteBuffer byteBuffer, boolean batchStart, int frameSize, long captureTime)
+        {
+            Message.init(byteBuffer, (short) getMessageSize(TIMESTAMP_SIZE + frameSize), ID);
+            byteBuffer.putShort((short) ((batchStart ? FLAG_BATCH_START : 0) | FLAG_TIMESTAMP));
+            byteBuffer.putLong(captureTime);
+        }
+
+        static RetainableByteBuffer createBatchEnd()
+        {
+            final RetainableByteBuffer msg = RetainableByteBuffer.allocateDirect(getMessageSize(0));
+            init(msg.getNioByteBuffer(), /*batch start*/false, 0);
+            msg.rewind();
+            return msg;
+        }
+
+        static void setBatchStart(RetainableByteBuffer msg)
+        {
+            /* Only for the frame not sent yet */
+            final int pos = (msg.position() + HEADER_SIZE);
+            msg.putShort(pos, (short) (msg.getShort(pos) | FLAG_BATCH_START));
+        }
+
+        static void setPriority(ByteBuffer byteBuffer, int pos)
+        {
+            final int flagsPos = (pos + HEADER_SIZE);
+            byteBuffer.putShort(flagsPos, (short) (byteBuffer.getShort(flagsPos) | FLAG_PRIORITY));
+        }
+
+        static void setCaptureTime(ByteBuffer byteBuffer, int pos, long captureTime)
+        {
+            /* Frame at 'pos' is expected to be initialized with a timestamp */
+            byteBuffer.putLong(pos + getMessageSize(0), captureTime);
+        }
+
+        static long getCaptureTime(RetainableByteBuffer msg)
+        {
+            /* Returns 0 if the frame has no timestamp */
+            final int pos = msg.position();
+            final short flags = msg.getShort(pos + HEADER_SIZE);
+            if ((flags & FLAG_TIMESTAMP) == 0)
+                return 0;
+            return msg.getNioByteBuffer().getLong(pos + getMessageSize(0));
+        }
+
+        static RetainableByteBuffer createWithoutTimestamp(RetainableByteBuffer msg)
+        {
+            /* For the sessions where FEATURE_CLOCK_SYNC is not negotiated */
+            final int pos = msg.position();
+            final short flags = msg.getShort(pos + HEADER_SIZE);
+            final int messageSize = (msg.remaining() - TIMESTAMP_SIZE);
+            final RetainableByteBuffer ret = RetainableByteBuffer.allocateDirect(messageSize);
+            Message.init(ret.getNioByteBuffer(), (short) messageSize, ID);
+            ret.putShort((short) (flags & ~FLAG_TIMESTAMP));
+            for (int idx=(pos + getDataOffset(flags)); idx<msg.limit(); idx++)
+                ret.put(msg.get(idx));
+            ret.rewind();
+            return ret;
+        }
+
+        static ByteBuffer copy(ByteBuffer msg, boolean batchStart)
+        {
+            final ByteBuffer ret = ByteBuffer.allocateDirect(msg.remaining());
+            ret.put(msg.duplicate());
+            short flags = ret.getShort(HEADER_SIZE);
+            if (batchStart)
+                flags |= FLAG_BATCH_START;
+            else
+                flags &= ~FLAG_BATCH_START;
+            ret.putShort(HEADER_SIZE, flags);
+            ret.rewind();
+            return ret;
+        }
+
+        private static int getReducedSize(int size, int rateShift)
+        {
+            final int rate = (1 << rateShift);
+            final int samples = (size / 2);
+            return (((samples + rate - 1) / rate) * 2);
+        }
+
+        private static void putReduced(RetainableByteBuffer dst, RetainableByteBuffer src, int pos, int size, int rateShift)
+        {
+            /* 16 bit PCM samples in the little endian byte order,
+             * each (1 << rateShift) samples are averaged into one,
+             * last incomplete group is averaged as well.
+             */
+            final int rate = (1 << rateShift);
+            final int end = (pos + (size / 2) * 2);
+            while (pos < end)
+            {
+                int sum = 0;
+                int cnt = 0;
+                for (; (cnt < rate) && (pos < end); cnt++, pos+=2)
+                    sum += ((src.get(pos+1) << 8) | (src.get(pos) & 0xFF));
+                final int v = (sum / cnt);
+                dst.put((byte) (v & 0xFF));
+                dst.put((byte) ((v >> 8) & 0xFF));
+            }
+        }
+
+        static RetainableByteBuffer createHalfRate(RetainableByteBuffer msg)
+        {
+            final int pos = msg.position();
+            final short flags = msg.getShort(pos + HEADER_SIZE);
+            final int dataOffset = getDataOffset(flags);
+            final int frameSize = (msg.remaining() - dataOffset);
+            final int halfRateFrameSize = getReducedSize(frameSize, 1);
+            final int messageSize = (dataOffset + halfRateFrameSize);
+
+            final RetainableByteBuffer ret = RetainableByteBuffer.allocateDirect(messageSize);
+            Message.init(ret.getNioByteBuffer(), (short) messageSize, ID);
+            ret.putShort((short) (flags | FLAG_HALF_RATE));
+            if ((flags & FLAG_TIMESTAMP) != 0)
+                ret.putLong(getCaptureTime(msg));
+            putReduced(ret, msg, pos + dataOffset, frameSize, 1);
+            ret.rewind();
+            return ret;
+        }
+
+        static RetainableByteBuffer createWithRecovery(
+                RetainableByteBuffer msg, boolean batchStart, RetainableByteBuffer lostMsg, int rateShift)
+        {
+            /* Both messages are expected to be audio frames with data,
+             * flags of the lost frame are not relevant.
+             */
+            final int pos = msg.position();
+            short flags = msg.getShort(pos + HEADER_SIZE);
+            final int dataOffset = getDataOffset(flags);
+            final int lostDataOffset = getDataOffset(lostMsg.getShort(lostMsg.position() + HEADER_SIZE));
+            final int frameSize = (msg.remaining() - dataOffset);
+            final int lostFrameSize = (lostMsg.remaining() - lostDataOffset);
+            final int recoverySize = getReducedSize(lostFrameSize, rateShift);
+            final int messageSize = (dataOffset + RECOVERY_HEADER_SIZE + recoverySize + frameSize);
+            if (messageSize > Short.MAX_VALUE)
+                return null;
+
+            if (batchStart)
+                flags |= FLAG_BATCH_START;
+            else
+                flags &= ~FLAG_BATCH_START;
+
+            final RetainableByteBuffer ret = RetainableByteBuffer.allocateDirect(messageSize);
+            Message.init(ret.getNioByteBuffer(), (short) messageSize, ID);
+            ret.putShort((short) (flags | FLAG_RECOVERY));
+            if ((flags & FLAG_TIMESTAMP) != 0)
+                ret.putLong(getCaptureTime(msg));
+            ret.putShort((short) recoverySize);
+            ret.putShort((short) rateShift);
+            putReduced(ret, lostMsg, lostMsg.position() + lostDataOffset, lostFrameSize, rateShift);
+            for (int idx=(pos + dataOffset); idx<msg.limit(); idx++)
+                ret.put(msg.get(idx));
+            ret.rewind();
+            return ret;
+        }
+
+        static short getFlags(RetainableByteBuffer msg)
+        {
+            final int pos = msg.position();
+            return msg.getShort(pos + HEADER_SIZE);
         }
 
         static boolean getBatchStart(RetainableByteBuffer msg)
+        {
+            return ((getFlags(msg) & FLAG_BATCH_START) != 0);
+        }
+
+        static boolean getPriority(RetainableByteBuffer msg)
+        {
+            return ((getFlags(msg) & FLAG_PRIORITY) != 0);
+        }
+
+        static int getRateShift(RetainableByteBuffer msg)
+        {
+            return (((getFlags(msg) & FLAG_HALF_RATE) != 0) ? 1 : 0);
+        }
+
+        static boolean hasRecovery(RetainableByteBuffer msg)
+        {
+            return ((getFlags(msg) & FLAG_RECOVERY) != 0);
+        }
+
+        static int getRecoveryRateShift(RetainableByteBuffer msg)
         {
             final int pos = msg.position();
-            final short batchMarker = msg.getShort(pos + HEADER_SIZE);
-            return (batchMarker != 0);
+            return msg.getShort(pos + getDataOffset(getFlags(msg)) + (Short.SIZE / Byte.SIZE));
+        }
+
+        static RetainableByteBuffer getRecoveryData(RetainableByteBuffer msg)
+        {
+            final int pos = msg.position();
+            final int limit = msg.limit();
+            final int dataOffset = getDataOffset(getFlags(msg));
+            final short recoverySize = msg.getShort(pos + dataOffset);
+            final int dataPos = (pos + dataOffset + RECOVERY_HEADER_SIZE);
+            if ((recoverySize <= 0) || ((dataPos + recoverySize) > limit))
+                return null;
+            try
+            {
+                msg.position(dataPos);
+                msg.limit(dataPos + recoverySize);
+                return msg.slice();
+            }
+            finally
+            {
+                msg.limit(limit);
+                msg.position(pos);
+            }
         }
 
         static RetainableByteBuffer getAudioData(RetainableByteBuffer msg)
         {
+            /* Throws BufferUnderflowException if the message is malformed */
             final int remaining = msg.remaining();
             final short messageSize = msg.getShort(); // skip message size
             if (BuildConfig.DEBUG && (messageSize != remaining))
@@ -306,23 +833,41 @@ class Protocol
                 throw new AssertionError();
             if (messageSize == getMessageSize(0))
                 return null;
-            msg.getShort(); // skip batch start flag
+            final short flags = msg.getShort();
+            if ((flags & FLAG_TIMESTAMP) != 0)
+                msg.position(msg.position() + TIMESTAMP_SIZE);
+            if ((flags & FLAG_RECOVERY) != 0)
+            {
+                final short recoverySize = msg.getShort();
+                msg.getShort(); // skip rate shift
+                if ((recoverySize < 0) || (recoverySize > msg.remaining()))
+                    throw new BufferUnderflowException();
+                msg.position(msg.position() + recoverySize);
+            }
             return msg.slice();
         }
     }
 
+    private static RetainableByteBuffer createPing(short type, int id)
+    {
+        /* Caller is responsible to release the buffer */
+        final RetainableByteBuffer msg = s_pingCache.get();
+        final ByteBuffer byteBuffer = msg.getNioByteBuffer();
+        byteBuffer.clear();
+        Message.init(byteBuffer, (short) PING_MESSAGE_SIZE, type);
+        byteBuffer.putInt(id);
+        byteBuffer.flip();
+        return msg;
+    }
+
     static class Ping extends Message
     {
         /* int : id */
         static final short ID = MSG_PING;
 
-        static ByteBuffer create(int id)
+        static RetainableByteBuffer create(int id)
         {
-            final short dataSize = (Integer.SIZE / Byte.SIZE);
-            final ByteBuffer msg = create(MSG_PING, dataSize);
-            msg.putInt(id);
-            msg.rewind();
-            return msg;
+            return createPing(ID, id);
         }
 
         static int getId(RetainableByteBuffer msg)
@@ -337,29 +882,291 @@ class Protocol
         /* int : id */
         static final short ID = MSG_PONG;
 
-        static ByteBuffer create(int id)
+        static RetainableByteBuffer create(int id)
+        {
+            return createPing(ID, id);
+        }
+
+        static int getId(RetainableByteBuffer msg)
         {
-            final short dataSize = (Integer.SIZE / Byte.SIZE);
-            final ByteBuffer msg = create(MSG_PONG, dataSize);
-            msg.putInt(id);
+            final int pos = msg.position();
+            return msg.getInt(pos + HEADER_SIZE);
+        }
+    }
+
+    static class KeepaliveInterval extends Message
+    {
+        /* Sent when the keepalive interval changes,
+         * sender promises to send something to the session
+         * at least once in the given interval.
+         * int : interval (milliseconds)
+         */
+        static final short ID = MSG_KEEPALIVE_INTERVAL;
+
+        static ByteBuffer create(int interval)
+        {
+            final ByteBuffer msg = create(ID, (short) (Integer.SIZE / Byte.SIZE));
+            msg.putInt(interval);
             msg.rewind();
             return msg;
         }
 
-        static int getId(RetainableByteBuffer msg)
+        static int getInterval(RetainableByteBuffer msg)
         {
             final int pos = msg.position();
             return msg.getInt(pos + HEADER_SIZE);
         }
     }
 
+    static class ClockPing extends Message
+    {
+        /* NTP style clock offset estimation, clock is a monotonic
+         * microsecond clock of the station (see ClockSync).
+         * long : sender time (t1)
+         */
+        static final short ID = MSG_CLOCK_PING;
+
+        static ByteBuffer create(long t1)
+        {
+            final ByteBuffer msg = create(ID, (short) (Long.SIZE / Byte.SIZE));
+            msg.putLong(t1);
+            msg.rewind();
+            return msg;
+        }
+
+        static long getTime(RetainableByteBuffer msg)
+        {
+            return msg.getNioByteBuffer().getLong(msg.position() + HEADER_SIZE);
+        }
+    }
+
+    static class ClockPong extends Message
+    {
+        /* long : t1 from the ClockPing
+         * long : ClockPing receive time (t2)
+         * long : ClockPong send time (t3)
+         */
+        static final short ID = MSG_CLOCK_PONG;
+
+        static ByteBuffer create(long t1, long t2, long t3)
+        {
+            final ByteBuffer msg = create(ID, (short) ((Long.SIZE / Byte.SIZE) * 3));
+            msg.putLong(t1);
+            msg.putLong(t2);
+            msg.putLong(t3);
+            msg.rewind();
+            return msg;
+        }
+
+        static long getTime(RetainableByteBuffer msg, int idx)
+        {
+            /* idx is 0 for t1, 1 for t2, 2 for t3 */
+            return msg.getNioByteBuffer().getLong(msg.position() + HEADER_SIZE + (Long.SIZE / Byte.SIZE) * idx);
+        }
+    }
+
+    static class ChannelOpen extends Message
+    {
+        /* Sent by the client over the session with FEATURE_MUX negotiated
+         * to open one more talkgroup with the same station,
+         * all messages of the talkgroup are sent wrapped into
+         * the ChannelData with the same channel ID, starting with
+         * the HandshakeRequest or ResumeRequest. Channel ID 0 is
+         * reserved for the talkgroup the session was opened for,
+         * its messages are sent as is.
+         * short : channel ID
+         * short : channel name length
+         * str   : channel name
+         */
+        static final short ID = MSG_CHANNEL_OPEN;
+
+        static ByteBuffer create(short channelId, String channelName) throws CharacterCodingException
+        {
+            final CharsetEncoder encoder = getEncoder();
+            final ByteBuffer bb = encoder.encode(CharBuffer.wrap(channelName));
+            final ByteBuffer msg = create(ID, (short) (2 + 2 + bb.remaining()));
+            msg.putShort(channelId);
+            msg.putShort((short) bb.remaining());
+            msg.put(bb);
+            msg.rewind();
+            return msg;
+        }
+
+        static short getChannelId(RetainableByteBuffer msg)
+        {
+            return msg.getShort(msg.position() + HEADER_SIZE);
+        }
+
+        static String getChannelName(RetainableByteBuffer msg) throws CharacterCodingException
+        {
+            final int pos = msg.position();
+            final ByteBuffer bb = msg.getNioByteBuffer().duplicate();
+            final short length = bb.getShort(pos + HEADER_SIZE + 2);
+            bb.limit(pos + HEADER_SIZE + 2 + 2 + length);
+            bb.position(pos + HEADER_SIZE + 2 + 2);
+            return getDecoder().decode(bb).toString();
+        }
+    }
+
+    static class ChannelData extends Message
+    {
+        /* short : channel ID
+         * data  : message of the talkgroup
+         */
+        static final short ID = MSG_CHANNEL_DATA;
+
+        static RetainableByteBuffer createHeader(short channelId, int dataSize)
+        {
+            /* Returns the header only, the message of the talkgroup
+             * should be sent right after it with Connection.sendData(prefix, data).
+             * Caller is responsible to release the buffer.
+             */
+            if ((CHANNEL_HEADER_SIZE + dataSize) > Short.MAX_VALUE)
+                throw new InvalidParameterException();
+            final RetainableByteBuffer msg = s_channelHeaderCache.get();
+            final ByteBuffer byteBuffer = msg.getNioByteBuffer();
+            byteBuffer.clear();
+            init(byteBuffer, (short) (CHANNEL_HEADER_SIZE + dataSize), ID);
+            byteBuffer.putShort(channelId);
+            byteBuffer.flip();
+            return msg;
+        }
+
+        static short getChannelId(RetainableByteBuffer msg)
+        {
+            return msg.getShort(msg.position() + HEADER_SIZE);
+        }
+
+        static RetainableByteBuffer getData(RetainableByteBuffer msg)
+        {
+            /* Caller is responsible to release the returned slice */
+            final int pos = msg.position();
+            try
+            {
+                msg.position(pos + HEADER_SIZE + 2);
+                return msg.slice();
+            }
+            finally
+            {
+                msg.position(pos);
+            }
+        }
+    }
+
+    static class ChannelClose extends Message
+    {
+        /* Talkgroup is closed or can not be opened,
+         * session and other talkgroups are not affected.
+         * short : channel ID
+         */
+        static final short ID = MSG_CHANNEL_CLOSE;
+
+        static ByteBuffer create(short channelId)
+        {
+            final ByteBuffer msg = create(ID, (short) 2);
+            msg.putShort(channelId);
+            msg.rewind();
+            return msg;
+        }
+
+        static short getChannelId(RetainableByteBuffer msg)
+        {
+            return msg.getShort(msg.position() + HEADER_SIZE);
+        }
+    }
+
+    static class FloorRequest extends Message
+    {
+        /* Floor control (FEATURE_FLOOR), Ricart-Agrawala style:
+         * the station sends FloorRequest to all stations of the talkgroup
+         * and starts transmission when all of them replied with FloorGrant.
+         * Station which transmits or has an earlier request replies
+         * with FloorBusy and sends FloorGrant later on release.
+         * int : request time (Lamport clock of the talkgroup)
+         * int : random number to order requests with the same time
+         */
+        static final short ID = MSG_FLOOR_REQUEST;
+
+        static ByteBuffer create(int requestTime, int nonce)
+        {
+            final ByteBuffer msg = create(ID, (short) ((Integer.SIZE / Byte.SIZE) * 2));
+            msg.putInt(requestTime);
+            msg.putInt(nonce);
+            msg.rewind();
+            return msg;
+        }
+
+        static int getRequestTime(RetainableByteBuffer msg)
+        {
+            return msg.getInt(msg.position() + HEADER_SIZE);
+        }
+
+        static int getNonce(RetainableByteBuffer msg)
+        {
+            return msg.getInt(msg.position() + HEADER_SIZE + (Integer.SIZE / Byte.SIZE));
+        }
+    }
+
+    static class FloorGrant extends Message
+    {
+        /* int : request time of the FloorRequest */
+        static final short ID = MSG_FLOOR_GRANT;
+
+        static ByteBuffer create(int requestTime)
+        {
+            final ByteBuffer msg = create(ID, (short) (Integer.SIZE / Byte.SIZE));
+            msg.putInt(requestTime);
+            msg.rewind();
+            return msg;
+        }
+
+        static int getRequestTime(RetainableByteBuffer msg)
+        {
+            return msg.getInt(msg.position() + HEADER_SIZE);
+        }
+    }
+
+    static class FloorBusy extends Message
+    {
+        /* Request is queued, FloorGrant will follow.
+         * int : request time of the FloorRequest
+         */
+        static final short ID = MSG_FLOOR_BUSY;
+
+        static ByteBuffer create(int requestTime)
+        {
+            final ByteBuffer msg = create(ID, (short) (Integer.SIZE / Byte.SIZE));
+            msg.putInt(requestTime);
+            msg.rewind();
+            return msg;
+        }
+
+        static int getRequestTime(RetainableByteBuffer msg)
+        {
+            return msg.getInt(msg.position() + HEADER_SIZE);
+        }
+    }
+
+    static class FloorRelease extends Message
+    {
+        /* Transmission is done or the request is cancelled */
+        static final short ID = MSG_FLOOR_RELEASE;
+
+        static ByteBuffer create()
+        {
+            final ByteBuffer msg = create(ID, (short) 0);
+            msg.rewind();
+            return msg;
+        }
+    }
+
     static class StationName extends Message
     {
         static final short ID = MSG_STATION_NAME;
 
         static RetainableByteBuffer create(String stationName) throws CharacterCodingException
         {
-            final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+            final CharsetEncoder encoder = getEncoder();
             final ByteBuffer stationNameBB = encoder.encode( CharBuffer.wrap(stationName) );
             final short extSize = (short) ((Short.SIZE / Byte.SIZE) + stationNameBB.remaining());
             final RetainableByteBuffer msg = createEx( ID, extSize );
@@ -379,7 +1186,7 @@ class Protocol
                 final short length = msg.getShort();
                 if (length > 0)
                 {
-                    final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
+                    final CharsetDecoder decoder = getDecoder();
                     ret = decoder.decode(msg.getNioByteBuffer()).toString();
                 }
             }
@@ -390,4 +1197,286 @@ class Protocol
             return ret;
         }
     }
+
+    static class Batch extends Message
+    {
+        /* Sequence of entries with a compact header:
+         *   varint : entry size (type + data)
+         *   byte   : entry type
+         *   data   : entry data
+         * Entry data:
+         *   AUDIO_FRAME  : varint flags,
+         *                  if AudioFrame.FLAG_TIMESTAMP is set:
+         *                    long capture time
+         *                  if AudioFrame.FLAG_RECOVERY is set:
+         *                    varint recovery data size, varint recovery rate shift, recovery data
+         *                  audio data (empty for the batch end)
+         *   PING, PONG   : varint id
+         *   STATION_NAME : station name
+         * Varint is an unsigned integer, 7 bits per byte, least significant first.
+         */
+        static final short ID = MSG_BATCH;
+
+        static final byte AUDIO_FRAME  = 1;
+        static final byte PING         = 2;
+        static final byte PONG         = 3;
+        static final byte STATION_NAME = 4;
+
+        static int getVarIntSize(int value)
+        {
+            int size = 1;
+            while ((value & ~0x7F) != 0)
+            {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        static class Reader
+        {
+            private RetainableByteBuffer m_msg;
+            private int m_pos;
+            private int m_end;
+            private int m_dataPos;
+            private int m_dataEnd;
+            private byte m_type;
+
+            void init(RetainableByteBuffer msg)
+            {
+                final int pos = msg.position();
+                m_msg = msg;
+                m_pos = (pos + HEADER_SIZE);
+                m_end = (pos + msg.getShort(pos));
+                if (m_end > msg.limit())
+                    m_end = msg.limit();
+            }
+
+            void reset()
+            {
+                m_msg = null;
+            }
+
+            /* Returns false at the end of the batch or if the batch is malformed */
+            boolean next()
+            {
+                if (m_pos >= m_end)
+                    return false;
+                m_dataPos = m_pos;
+                m_dataEnd = m_end;
+                final int size = getVarInt();
+                if ((size <= 0) || ((m_dataPos + size) > m_end))
+                    return false;
+                m_type = m_msg.get(m_dataPos++);
+                m_dataEnd = (m_dataPos + size - 1);
+                m_pos = m_dataEnd;
+                return true;
+            }
+
+            byte getType()
+            {
+                return m_type;
+            }
+
+            int getVarInt()
+            {
+                int value = 0;
+                for (int shift=0; (shift < Integer.SIZE) && (m_dataPos < m_dataEnd); shift+=7)
+                {
+                    final byte b = m_msg.get(m_dataPos++);
+                    value |= ((b & 0x7F) << shift);
+                    if ((b & 0x80) == 0)
+                        break;
+                }
+                return value;
+            }
+
+            int getRemaining()
+            {
+                return (m_dataEnd - m_dataPos);
+            }
+
+            long getLong()
+            {
+                if ((m_dataPos + (Long.SIZE / Byte.SIZE)) > m_dataEnd)
+                {
+                    m_dataPos = m_dataEnd;
+                    return 0;
+                }
+                final long value = m_msg.getNioByteBuffer().getLong(m_dataPos);
+                m_dataPos += (Long.SIZE / Byte.SIZE);
+                return value;
+            }
+
+            RetainableByteBuffer getData(int size)
+            {
+                /* Returns a slice of the next 'size' bytes of the entry data */
+                if ((size <= 0) || ((m_dataPos + size) > m_dataEnd))
+                    return null;
+                final int pos = m_msg.position();
+                final int limit = m_msg.limit();
+                try
+                {
+                    m_msg.position(m_dataPos);
+                    m_msg.limit(m_dataPos + size);
+                    m_dataPos += size;
+                    return m_msg.slice();
+                }
+                finally
+                {
+                    m_msg.limit(limit);
+                    m_msg.position(pos);
+                }
+            }
+
+            String getString() throws CharacterCodingException
+            {
+                final RetainableByteBuffer data = getData(getRemaining());
+                if (data == null)
+                    return null;
+                try
+                {
+                    final CharsetDecoder decoder = getDecoder();
+                    return decoder.decode(data.getNioByteBuffer()).toString();
+                }
+                finally
+                {
+                    data.release();
+                }
+            }
+        }
+
+        static class Writer
+        {
+            private ByteBuffer m_buf;
+
+            Writer(int capacity)
+            {
+                m_buf = ByteBuffer.allocate(capacity);
+                m_buf.order(BYTE_ORDER);
+                m_buf.position(HEADER_SIZE);
+            }
+
+            boolean isEmpty()
+            {
+                return (m_buf.position() == HEADER_SIZE);
+            }
+
+            private boolean reserve(int entrySize)
+            {
+                final int size = (getVarIntSize(entrySize) + entrySize);
+                if ((m_buf.position() + size) > Short.MAX_VALUE)
+                    return false;
+                if (m_buf.remaining() < size)
+                {
+                    int capacity = (m_buf.capacity() * 2);
+                    while (capacity < (m_buf.position() + size))
+                        capacity *= 2;
+                    final ByteBuffer buf = ByteBuffer.allocate(capacity);
+                    buf.order(BYTE_ORDER);
+                    m_buf.flip();
+                    buf.put(m_buf);
+                    m_buf = buf;
+                }
+                putVarInt(entrySize);
+                return true;
+            }
+
+            private void putVarInt(int value)
+            {
+                while ((value & ~0x7F) != 0)
+                {
+                    m_buf.put((byte) ((value & 0x7F) | 0x80));
+                    value >>>= 7;
+                }
+                m_buf.put((byte) value);
+            }
+
+            private boolean addInt(byte type, int value)
+            {
+                if (!reserve(1 + getVarIntSize(value)))
+                    return false;
+                m_buf.put(type);
+                putVarInt(value);
+                return true;
+            }
+
+            boolean addPing(int id)
+            {
+                return addInt(PING, id);
+            }
+
+            boolean addPong(int id)
+            {
+                return addInt(PONG, id);
+            }
+
+            boolean addAudioFrame(ByteBuffer msg)
+            {
+                /* Convert AudioFrame message to the compact entry */
+                final int pos = msg.position();
+                final int messageSize = msg.getShort(pos);
+                final short flags = msg.getShort(pos + HEADER_SIZE);
+                int dataPos = (pos + AudioFrame.getDataOffset(flags));
+                int entrySize = (1 + getVarIntSize(flags));
+                if ((flags & AudioFrame.FLAG_TIMESTAMP) != 0)
+                    entrySize += AudioFrame.TIMESTAMP_SIZE;
+                short recoverySize = 0;
+                short recoveryRateShift = 0;
+                if ((flags & AudioFrame.FLAG_RECOVERY) != 0)
+                {
+                    recoverySize = msg.getShort(dataPos);
+                    recoveryRateShift = msg.getShort(dataPos + 2);
+                    dataPos += 4;
+                    entrySize += (getVarIntSize(recoverySize) + getVarIntSize(recoveryRateShift));
+                }
+                final int dataSize = (pos + messageSize - dataPos);
+                entrySize += dataSize;
+
+                if (!reserve(entrySize))
+                    return false;
+
+                m_buf.put(AUDIO_FRAME);
+                putVarInt(flags);
+                if ((flags & AudioFrame.FLAG_TIMESTAMP) != 0)
+                    m_buf.putLong(msg.getLong(pos + AudioFrame.getMessageSize(0)));
+                if ((flags & AudioFrame.FLAG_RECOVERY) != 0)
+                {
+                    putVarInt(recoverySize);
+                    putVarInt(recoveryRateShift);
+                }
+                final ByteBuffer data = msg.duplicate();
+                data.position(dataPos);
+                data.limit(dataPos + dataSize);
+                m_buf.put(data);
+                return true;
+            }
+
+            RetainableByteBuffer finish()
+            {
+                /* Returns the batch message and resets the writer,
+                 * returns null if the writer is empty.
+                 * Caller is responsible to release the buffer.
+                 * Only batches up to SMALL_BATCH_SIZE come from the cache,
+                 * larger ones (usually carrying audio) are allocated.
+                 */
+                if (isEmpty())
+                    return null;
+                final int size = m_buf.position();
+                m_buf.putShort(0, (short) size);
+                m_buf.putShort(2, ID);
+                m_buf.flip();
+                final RetainableByteBuffer msg = ((size <= SMALL_BATCH_SIZE)
+                        ? s_smallBatchCache.get()
+                        : RetainableByteBuffer.allocateDirect(size));
+                final ByteBuffer byteBuffer = msg.getNioByteBuffer();
+                byteBuffer.clear();
+                byteBuffer.put(m_buf);
+                byteBuffer.flip();
+                m_buf.clear();
+                m_buf.position(HEADER_SIZE);
+                return msg;
+            }
+        }
+    }
 }
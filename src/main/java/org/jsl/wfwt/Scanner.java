@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+class Scanner
+{
+    /* Only one talkgroup is played at a time: the home talkgroup
+     * (one selected for transmission) if it is active, otherwise
+     * the active talkgroup with the highest priority (the first one
+     * in Config.TALKGROUPS) if scanning is enabled. Talkgroup is active
+     * while any station transmits to it. Audio frames of other talkgroups
+     * are dropped by the sessions before they reach the audio player,
+     * when a talkgroup with a higher priority becomes active it preempts
+     * the one being played. Stream state changes are rare and handled
+     * under the lock, audio frames check the volatile selected channel only.
+     */
+    private static final String LOG_TAG = "Scanner";
+
+    private final ReentrantLock m_lock;
+    private final ArrayList<Channel> m_channels; /* by priority */
+    private final ArrayList<Integer> m_streams; /* active streams by channel */
+    private Channel m_homeChannel;
+    private boolean m_scanning;
+    private volatile Channel m_selected;
+
+    Scanner(boolean scanning)
+    {
+        m_lock = new ReentrantLock();
+        m_channels = new ArrayList<Channel>();
+        m_streams = new ArrayList<Integer>();
+        m_scanning = scanning;
+    }
+
+    private void updateLocked()
+    {
+        Channel selected = null;
+        final int homeIdx = m_channels.indexOf(m_homeChannel);
+        if ((homeIdx >= 0) && (m_streams.get(homeIdx) > 0))
+            selected = m_homeChannel;
+        else if (m_scanning)
+        {
+            for (int idx=0; idx<m_channels.size(); idx++)
+            {
+                if (m_streams.get(idx) > 0)
+                {
+                    selected = m_channels.get(idx);
+                    break;
+                }
+            }
+        }
+
+        if (selected != m_selected)
+        {
+            final Channel prev = m_selected;
+            if ((prev != null) && (selected != null))
+                Log.i(LOG_TAG, "talkgroup " + prev.getName() + " preempted by " + selected.getName());
+            else if (selected != null)
+                Log.i(LOG_TAG, "play talkgroup " + selected.getName());
+            m_selected = selected;
+        }
+    }
+
+    void addChannel(Channel channel)
+    {
+        /* Channels are added in the priority order */
+        m_lock.lock();
+        try
+        {
+            m_channels.add(channel);
+            m_streams.add(0);
+            if (m_homeChannel == null)
+                m_homeChannel = channel;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void setHomeChannel(Channel channel)
+    {
+        m_lock.lock();
+        try
+        {
+            m_homeChannel = channel;
+            updateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void setScanning(boolean scanning)
+    {
+        m_lock.lock();
+        try
+        {
+            m_scanning = scanning;
+            updateLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    boolean isScanning()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_scanning;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    void onStreamStateChanged(Channel channel, boolean active)
+    {
+        /* Called by the session on the batch start and end */
+        m_lock.lock();
+        try
+        {
+            final int idx = m_channels.indexOf(channel);
+            if (idx >= 0)
+            {
+                final int streams = (m_streams.get(idx) + (active ? 1 : -1));
+                if (BuildConfig.DEBUG && (streams < 0))
+                    throw new AssertionError();
+                m_streams.set(idx, streams);
+                updateLocked();
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    boolean isSelected(Channel channel)
+    {
+        return (m_selected == channel);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.Session;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+class SessionConnection implements Connection
+{
+    /* Collider keeps the order of sendData() calls, the lock is held
+     * by every send to have the prefix and the data of the multiplexed
+     * talkgroup message (see Link) not interleaved with other messages.
+     */
+    private final Session m_session;
+    private final ReentrantLock m_sendLock;
+
+    SessionConnection(Session session)
+    {
+        m_session = session;
+        m_sendLock = new ReentrantLock();
+    }
+
+    public SocketAddress getRemoteAddress()
+    {
+        return m_session.getRemoteAddress();
+    }
+
+    public int sendData(ByteBuffer data)
+    {
+        m_sendLock.lock();
+        try
+        {
+            return m_session.sendData(data);
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+    }
+
+    public int sendData(RetainableByteBuffer data)
+    {
+        m_sendLock.lock();
+        try
+        {
+            return m_session.sendData(data);
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+    }
+
+    public int sendData(RetainableByteBuffer prefix, ByteBuffer data)
+    {
+        m_sendLock.lock();
+        try
+        {
+            final int rc = m_session.sendData(prefix);
+            if (rc < 0)
+                return rc;
+            return m_session.sendData(data);
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+    }
+
+    public int sendData(RetainableByteBuffer prefix, RetainableByteBuffer data)
+    {
+        m_sendLock.lock();
+        try
+        {
+            final int rc = m_session.sendData(prefix);
+            if (rc < 0)
+                return rc;
+            return m_session.sendData(data);
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+    }
+
+    public int closeConnection()
+    {
+        return m_session.closeConnection();
+    }
+
+    public Session.Listener replaceListener(Session.Listener listener)
+    {
+        return m_session.replaceListener(listener);
+    }
+
+    public Link getLink()
+    {
+        return null;
+    }
+}
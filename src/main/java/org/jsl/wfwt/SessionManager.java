@@ -25,56 +25,112 @@ import java.util.concurrent.locks.ReentrantLock;
 
 class SessionManager
 {
-    private static final class Node
-    {
-        volatile Node prev;
-        volatile Node next;
-        final ChannelSession session;
+    // Each routing set is an array snapshot which is replaced
+    // (copy on write) under lock and published with a volatile write,
+    // so the audio recorder iterates a plain array without any lock.
+    // Session keeps own position (slot) in each set, so removal
+    // does not need to search: the last session is moved to the slot.
 
-        Node(ChannelSession session)
-        {
-            this.session = session;
-        }
-    }
+    static final int ROUTE_ALL = 0;      // all sessions, used with PTT
+    static final int ROUTE_SELECTED = 1; // sessions selected as receivers
+    static final int ROUTES = 2;
 
-    // We do not expect too many channels, let's use just a simple list
-    // which will be modified serially under lock,
-    // but can be iterated by the audio recorder without lock.
+    private static final ChannelSession [] EMPTY = new ChannelSession[0];
+
+    private static final class Route
+    {
+        volatile ChannelSession [] sessions = EMPTY;
+    }
 
     private final ReentrantLock m_lock;
-    private volatile Node m_head;
-    private volatile Node m_tail;
+    private final Route [] m_routes;
+
+    // Half rate copy of the audio frame being sent,
+    // created on demand for the sessions with a weak link,
+    // accessed by the audio recorder thread only.
+    private RetainableByteBuffer m_halfRateSource;
+    private RetainableByteBuffer m_halfRateFrame;
+
+    // Copy of the audio frame without capture time
+    // for the sessions where clock synchronization is not negotiated,
+    // accessed by the audio recorder thread only.
+    private RetainableByteBuffer m_plainFrame;
+
+    // Floor control of the talkgroup, set by the Channel,
+    // and the state of the current transmission,
+    // accessed by the audio recorder thread only.
+    private volatile FloorControl m_floorControl;
+    private int m_floorState;
+
+    private static final int FLOOR_NONE = 0; // no transmission
+    private static final int FLOOR_WAIT = 1; // waiting for the grant, frames are dropped
+    private static final int FLOOR_SEND = 2; // floor is granted, frames are sent
+    private static final int FLOOR_LOST = 3; // floor lost in the middle, frames are dropped
 
     SessionManager()
     {
         m_lock = new ReentrantLock();
+        m_routes = new Route[ROUTES];
+        for (int route=0; route<ROUTES; route++)
+            m_routes[route] = new Route();
     }
 
-    void addSession( ChannelSession channelSession )
+    private void addLocked(int route, ChannelSession channelSession)
     {
-        m_lock.lock();
-        try
+        if (BuildConfig.DEBUG && !m_lock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        if (channelSession.getRouteSlot(route) >= 0)
+            return;
+
+        final ChannelSession [] sessions = m_routes[route].sessions;
+        final ChannelSession [] newSessions = new ChannelSession[sessions.length + 1];
+        System.arraycopy(sessions, 0, newSessions, 0, sessions.length);
+        newSessions[sessions.length] = channelSession;
+        channelSession.setRouteSlot(route, sessions.length);
+        m_routes[route].sessions = newSessions;
+    }
+
+    private void removeLocked(int route, ChannelSession channelSession)
+    {
+        if (BuildConfig.DEBUG && !m_lock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        final int slot = channelSession.getRouteSlot(route);
+        if (slot < 0)
+            return;
+
+        final ChannelSession [] sessions = m_routes[route].sessions;
+        if (BuildConfig.DEBUG && (sessions[slot] != channelSession))
+            throw new AssertionError();
+
+        final int last = (sessions.length - 1);
+        final ChannelSession [] newSessions;
+        if (last == 0)
+            newSessions = EMPTY;
+        else
         {
-            if (BuildConfig.DEBUG)
+            newSessions = new ChannelSession[last];
+            System.arraycopy(sessions, 0, newSessions, 0, last);
+            if (slot != last)
             {
-                Node node = m_head;
-                while (node != null)
-                {
-                    if (node.session == channelSession)
-                        throw new AssertionError();
-                    node = node.next;
-                }
+                final ChannelSession lastSession = sessions[last];
+                newSessions[slot] = lastSession;
+                lastSession.setRouteSlot(route, slot);
             }
+        }
+        channelSession.setRouteSlot(route, -1);
+        m_routes[route].sessions = newSessions;
+    }
 
-            final Node node = new Node( channelSession );
-            if (m_head == null)
-                m_head = node;
-            else
-            {
-                node.prev = m_tail;
-                m_tail.next = node;
-            }
-            m_tail = node;
+    void addSession(ChannelSession channelSession)
+    {
+        m_lock.lock();
+        try
+        {
+            if (BuildConfig.DEBUG && (channelSession.getRouteSlot(ROUTE_ALL) >= 0))
+                throw new AssertionError();
+            addLocked(ROUTE_ALL, channelSession);
         }
         finally
         {
@@ -87,64 +143,13 @@ class SessionManager
         m_lock.lock();
         try
         {
-            Node node = m_head;
-            while (node != null)
-            {
-                if (node.session == channelSession)
-                {
-                    if ((node.next == null) && (node.prev == null))
-                    {
-                        // only one node in the list
-                        if (BuildConfig.DEBUG && ((node != m_head) || (node != m_tail)))
-                            throw new AssertionError();
-                        m_head = null;
-                        m_tail = null;
-                    }
-                    else if (node.next == null)
-                    {
-                        // tail node
-                        if (BuildConfig.DEBUG && (node != m_tail))
-                            throw new AssertionError();
-                        node.prev.next = null;
-                        m_tail = node.prev;
-                    }
-                    else if (node.prev == null)
-                    {
-                        // head node
-                        if (BuildConfig.DEBUG && (node != m_head))
-                            throw new AssertionError();
-                        node.next.prev = null;
-                        m_head = node.next;
-                    }
-                    else
-                    {
-                        // somewhere inside the list
-                        if (BuildConfig.DEBUG && ((node == m_head) || (node == m_tail)))
-                            throw new AssertionError();
-                        node.prev.next = node.next;
-                        node.next.prev = node.prev;
-                    }
-
-                    if (BuildConfig.DEBUG)
-                    {
-                        node = node.next;
-                        while (node != null)
-                        {
-                            if (node.session == channelSession)
-                                throw new AssertionError();
-                            node = node.next;
-                        }
-                    }
-                    return;
-                }
-                node = node.next;
-            }
-
-            if (BuildConfig.DEBUG)
+            if (BuildConfig.DEBUG && (channelSession.getRouteSlot(ROUTE_ALL) < 0))
             {
                 // not found, should not happen
                 throw new AssertionError();
             }
+            for (int route=0; route<ROUTES; route++)
+                removeLocked(route, channelSession);
         }
         finally
         {
@@ -152,23 +157,132 @@ class SessionManager
         }
     }
 
-    void sendAudioFrame(RetainableByteBuffer msg, boolean ptt)
+    void setSendAudio(ChannelSession channelSession, boolean sendAudio)
     {
-        Node node = m_head;
-        while (node != null)
+        m_lock.lock();
+        try
+        {
+            if (!sendAudio)
+                removeLocked(ROUTE_SELECTED, channelSession);
+            else if (channelSession.getRouteSlot(ROUTE_ALL) >= 0)
+                addLocked(ROUTE_SELECTED, channelSession);
+            /* else session is already closed */
+        }
+        finally
         {
-            node.session.sendAudioFrame(msg, ptt);
-            node = node.next;
+            m_lock.unlock();
         }
     }
 
-    void sendAudioFrame(ByteBuffer msg, boolean ptt)
+    void setFloorControl(FloorControl floorControl)
     {
-        Node node = m_head;
-        while (node != null)
+        m_floorControl = floorControl;
+    }
+
+    RetainableByteBuffer getHalfRateAudioFrame(RetainableByteBuffer msg)
+    {
+        if (m_halfRateSource != msg)
+        {
+            if (m_halfRateFrame != null)
+                m_halfRateFrame.release();
+            m_halfRateSource = msg;
+            m_halfRateFrame = Protocol.AudioFrame.createHalfRate(msg);
+        }
+        return m_halfRateFrame;
+    }
+
+    RetainableByteBuffer getAudioFrameWithoutTimestamp(RetainableByteBuffer msg)
+    {
+        if (m_plainFrame == null)
+            m_plainFrame = Protocol.AudioFrame.createWithoutTimestamp(msg);
+        return m_plainFrame;
+    }
+
+    private boolean checkFloor(RetainableByteBuffer msg, boolean ptt)
+    {
+        /* Returns true if the frame can be sent. */
+        final FloorControl floorControl = m_floorControl;
+        if (floorControl == null)
+            return true;
+
+        final boolean batchEnd = (msg.remaining() == Protocol.AudioFrame.getMessageSize(0));
+        if (batchEnd)
         {
-            node.session.sendAudioFrame(msg, ptt);
-            node = node.next;
+            final int floorState = m_floorState;
+            m_floorState = FLOOR_NONE;
+            floorControl.release();
+            return (floorState == FLOOR_SEND);
         }
+
+        if (m_floorState == FLOOR_NONE)
+        {
+            floorControl.request();
+            m_floorState = FLOOR_WAIT;
+        }
+
+        if ((m_floorState == FLOOR_WAIT) && Protocol.AudioFrame.getPriority(msg))
+        {
+            /* Emergency transmission does not wait for the floor,
+             * the request still makes other stations see it busy.
+             */
+            m_floorState = FLOOR_SEND;
+        }
+
+        if (m_floorState == FLOOR_WAIT)
+        {
+            if (!floorControl.isGranted())
+                return false;
+            /* First frame sent starts the batch on the remote side */
+            Protocol.AudioFrame.setBatchStart(msg);
+            m_floorState = FLOOR_SEND;
+        }
+        else if (m_floorState == FLOOR_SEND)
+        {
+            if (!floorControl.isGranted())
+            {
+                /* Hold timeout, complete the batch on the remote side */
+                final RetainableByteBuffer batchEndMsg = Protocol.AudioFrame.createBatchEnd();
+                final ChannelSession [] sessions = m_routes[ptt ? ROUTE_ALL : ROUTE_SELECTED].sessions;
+                for (ChannelSession session : sessions)
+                    session.sendAudioFrame(batchEndMsg);
+                batchEndMsg.release();
+                m_floorState = FLOOR_LOST;
+            }
+        }
+
+        return (m_floorState == FLOOR_SEND);
+    }
+
+    void sendAudioFrame(RetainableByteBuffer msg, boolean ptt)
+    {
+        if (!checkFloor(msg, ptt))
+            return;
+
+        final ChannelSession [] sessions = m_routes[ptt ? ROUTE_ALL : ROUTE_SELECTED].sessions;
+        for (ChannelSession session : sessions)
+            session.sendAudioFrame(msg);
+
+        if (m_halfRateFrame != null)
+        {
+            m_halfRateFrame.release();
+            m_halfRateFrame = null;
+            m_halfRateSource = null;
+        }
+
+        if (m_plainFrame != null)
+        {
+            m_plainFrame.release();
+            m_plainFrame = null;
+        }
+    }
+
+    void sendAudioFrame(ByteBuffer msg, boolean ptt)
+    {
+        if ((m_floorControl != null) && (m_floorState != FLOOR_SEND))
+            return;
+
+        final ChannelSession [] sessions = m_routes[ptt ? ROUTE_ALL : ROUTE_SELECTED].sessions;
+        for (ChannelSession session : sessions)
+            session.sendAudioFrame(msg);
     }
 }
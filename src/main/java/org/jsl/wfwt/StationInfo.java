@@ -20,18 +20,27 @@ package org.jsl.wfwt;
 
 class StationInfo
 {
+    /* Fields changed since the previous update of the station */
+    static final int CHANGED_NAME = 0x0001;
+    static final int CHANGED_STATE = 0x0002;
+    static final int CHANGED_PING = 0x0004;
+
     final String name;
     final String addr;
     final int transmission;
     final long ping;
     final ChannelSession channelSession;
+    final LinkStats.Snapshot linkStats;
+    final int changes;
 
-    StationInfo(String name, String addr, int transmission, long ping, ChannelSession channelSession)
+    StationInfo(String name, String addr, int transmission, long ping, ChannelSession channelSession, int changes)
     {
         this.name = name;
         this.addr = addr;
         this.transmission = transmission;
         this.ping = ping;
         this.channelSession = channelSession;
+        this.linkStats = ((channelSession == null) ? null : channelSession.getLinkStats());
+        this.changes = changes;
     }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of WiFi WalkieTalkie application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.wfwt;
+
+import org.jsl.collider.TimerQueue;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class TimingWheel
+{
+    /* Hashed timing wheel for the per session timers (keepalive,
+     * failure detection, handshake timeouts). With many sessions
+     * each one having own task in the collider TimerQueue every
+     * schedule/cancel takes the queue lock and reorders its heap,
+     * while the wheel does it in O(1): timer is linked into the slot
+     * (deadline tick modulo wheel size) and keeps the deadline tick.
+     * Only the wheel itself is a TimerQueue task, expired timers
+     * are run one by one in its thread. The wheel does not tick
+     * when there is nothing to do: the ticker is scheduled to the
+     * nearest deadline and stops when the wheel is empty, ticks
+     * passed meanwhile are processed at once. Timer resolution
+     * is one tick, what is enough for timeouts and failure checks.
+     */
+    private static final int SLOT_NONE = -1;    /* not scheduled */
+    private static final int SLOT_PENDING = -2; /* expired, will run in this tick */
+
+    abstract static class Timer
+    {
+        private Timer m_prev;
+        private Timer m_next;
+        private int m_slot;
+        private long m_deadline; /* tick */
+        private boolean m_cancelled;
+
+        Timer()
+        {
+            m_slot = SLOT_NONE;
+        }
+
+        /* Returns delay till the next run (milliseconds), 0 to stop. */
+        abstract long run();
+    }
+
+    private class Ticker implements TimerQueue.Task
+    {
+        public long run()
+        {
+            return onTick(this);
+        }
+    }
+
+    private final TimerQueue m_timerQueue;
+    private final long m_tickDuration; /* milliseconds */
+    private final long m_startTime; /* milliseconds */
+    private final Timer [] m_wheel;
+    private final ReentrantLock m_lock;
+    private final Condition m_cond;
+    private final ArrayList<Timer> m_expired;
+    private long m_tick; /* last processed */
+    private int m_timers;
+
+    /* Ticker scheduled to the m_tickerTick, replaced by a new one
+     * if a timer with earlier deadline is added (canceling would wait
+     * for the running ticker), ticker which is not current any more
+     * just stops when runs. m_ticking is set while the current ticker
+     * runs, it schedules itself for the next deadline then.
+     */
+    private Ticker m_ticker;
+    private long m_tickerTick;
+    private boolean m_ticking;
+    private boolean m_stopped;
+    private Timer m_running;
+    private Thread m_tickThread;
+
+    TimingWheel(TimerQueue timerQueue, long tickDuration, int wheelSize)
+    {
+        m_timerQueue = timerQueue;
+        m_tickDuration = tickDuration;
+        m_startTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        m_wheel = new Timer[wheelSize];
+        m_lock = new ReentrantLock();
+        m_cond = m_lock.newCondition();
+        m_expired = new ArrayList<Timer>();
+        m_tickerTick = Long.MAX_VALUE;
+    }
+
+    void stop() throws InterruptedException
+    {
+        final Ticker ticker;
+        m_lock.lock();
+        try
+        {
+            m_stopped = true;
+            ticker = m_ticker;
+            m_ticker = null;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (ticker != null)
+            m_timerQueue.cancel(ticker);
+    }
+
+    private long getTime()
+    {
+        return (TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) - m_startTime);
+    }
+
+    private long getDelay(long tick)
+    {
+        /* Milliseconds till the tick */
+        return Math.max((tick * m_tickDuration) - getTime(), 1);
+    }
+
+    private void addLocked(Timer timer, long delay)
+    {
+        if (BuildConfig.DEBUG && !m_lock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        /* At least one full tick, timer is never run earlier than requested */
+        final long ticks = Math.max((delay + m_tickDuration - 1) / m_tickDuration, 1);
+        final long deadline = (Math.max(getTime() / m_tickDuration, m_tick) + ticks);
+        final int slot = (int) (deadline % m_wheel.length);
+        timer.m_deadline = deadline;
+        timer.m_slot = slot;
+        timer.m_prev = null;
+        timer.m_next = m_wheel[slot];
+        if (timer.m_next != null)
+            timer.m_next.m_prev = timer;
+        m_wheel[slot] = timer;
+        m_timers++;
+
+        if (!m_ticking && !m_stopped && (deadline < m_tickerTick))
+        {
+            m_ticker = new Ticker();
+            m_tickerTick = deadline;
+            m_timerQueue.schedule(m_ticker, getDelay(deadline), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void removeLocked(Timer timer)
+    {
+        if (timer.m_prev == null)
+            m_wheel[timer.m_slot] = timer.m_next;
+        else
+            timer.m_prev.m_next = timer.m_next;
+        if (timer.m_next != null)
+            timer.m_next.m_prev = timer.m_prev;
+        timer.m_prev = null;
+        timer.m_next = null;
+        timer.m_slot = SLOT_NONE;
+        m_timers--;
+    }
+
+    private long getNextDeadlineLocked()
+    {
+        /* Walk the slots starting from the next tick,
+         * timer in the slot at the distance N can expire in N ticks
+         * or in the next rotations.
+         */
+        long deadline = Long.MAX_VALUE;
+        for (int idx=1; idx<=m_wheel.length; idx++)
+        {
+            final long tick = (m_tick + idx);
+            for (Timer timer=m_wheel[(int) (tick % m_wheel.length)]; timer!=null; timer=timer.m_next)
+            {
+                if (timer.m_deadline < deadline)
+                    deadline = timer.m_deadline;
+            }
+            if (deadline <= tick)
+                break;
+        }
+        return deadline;
+    }
+
+    void schedule(Timer timer, long delay, TimeUnit timeUnit)
+    {
+        m_lock.lock();
+        try
+        {
+            if (BuildConfig.DEBUG && (timer.m_slot != SLOT_NONE))
+                throw new AssertionError();
+            timer.m_cancelled = false;
+            addLocked(timer, timeUnit.toMillis(delay));
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    int cancel(Timer timer) throws InterruptedException
+    {
+        /* Returns 0 if the timer is removed before run,
+         * -1 if it is not scheduled (already fired or not started).
+         * If the timer is running waits for its completion,
+         * the timer will not be rescheduled then.
+         * Ticker is not rescheduled, at worst it runs once for nothing.
+         */
+        m_lock.lock();
+        try
+        {
+            if (timer.m_slot >= 0)
+            {
+                removeLocked(timer);
+                return 0;
+            }
+
+            if (timer.m_slot == SLOT_PENDING)
+            {
+                timer.m_slot = SLOT_NONE;
+                return 0;
+            }
+
+            if (m_running == timer)
+            {
+                timer.m_cancelled = true;
+                if (Thread.currentThread() != m_tickThread)
+                {
+                    while (m_running == timer)
+                        m_cond.await();
+                }
+            }
+            return -1;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private long onTick(Ticker ticker)
+    {
+        final ArrayList<Timer> expired = m_expired;
+        m_lock.lock();
+        try
+        {
+            if (ticker != m_ticker)
+                return 0;
+
+            m_ticking = true;
+            m_tickThread = Thread.currentThread();
+
+            /* Process all ticks passed since the last run,
+             * but every slot not more than once.
+             */
+            final long tick = (getTime() / m_tickDuration);
+            final long firstTick = Math.max(m_tick + 1, tick - m_wheel.length + 1);
+            for (long t=firstTick; t<=tick; t++)
+            {
+                Timer timer = m_wheel[(int) (t % m_wheel.length)];
+                while (timer != null)
+                {
+                    final Timer next = timer.m_next;
+                    if (timer.m_deadline <= tick)
+                    {
+                        removeLocked(timer);
+                        timer.m_slot = SLOT_PENDING;
+                        expired.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+            if (tick > m_tick)
+                m_tick = tick;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        for (Timer timer : expired)
+        {
+            m_lock.lock();
+            try
+            {
+                if (timer.m_slot != SLOT_PENDING)
+                {
+                    /* Cancelled after expiration */
+                    continue;
+                }
+                timer.m_slot = SLOT_NONE;
+                m_running = timer;
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            final long delay = timer.run();
+
+            m_lock.lock();
+            try
+            {
+                m_running = null;
+                if ((delay > 0) && !timer.m_cancelled && (timer.m_slot == SLOT_NONE))
+                    addLocked(timer, delay);
+                m_cond.signalAll();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+        }
+        expired.clear();
+
+        m_lock.lock();
+        try
+        {
+            m_ticking = false;
+            if (m_stopped || (m_timers == 0))
+            {
+                m_ticker = null;
+                m_tickerTick = Long.MAX_VALUE;
+                return 0;
+            }
+            m_tickerTick = getNextDeadlineLocked();
+            return getDelay(m_tickerTick);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.media.AudioManager;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.IBinder;
 import android.provider.Settings;
@@ -34,6 +35,8 @@ import org.jsl.collider.TimerQueue;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Condition;
@@ -44,7 +47,7 @@ public class WalkieService extends Service
     private static final String LOG_TAG = WalkieService.class.getSimpleName();
 
     private static final String SERVICE_TYPE = "_wfwt._tcp"; /* WiFi Walkie Talkie */
-    private static final String SERVICE_NAME = "Channel_00";
+    private static final String PEER_CACHE_NAME = "peers";
     static final String SERVICE_NAME_SEPARATOR = ":";
 
     private NsdManager m_nsdManager;
@@ -59,7 +62,19 @@ public class WalkieService extends Service
 
     private Collider m_collider;
     private ColliderThread m_colliderThread;
-    private Channel m_channel;
+    private TimingWheel m_timingWheel;
+
+    /* Talkgroups share the collider, the timers and the audio recorder,
+     * each one has own Channel with own SessionManager, so a transmission
+     * touches only sessions of the current talkgroup.
+     * m_channels is not modified after the start.
+     */
+    private final LinkedHashMap<String, Channel> m_channels;
+    private Channel m_channel; /* current talkgroup, protected by m_lock */
+    private Channel.StateListener m_channelStateListener;
+    private Scanner m_scanner; /* only one talkgroup is played at a time */
+    private BroadcastDiscovery m_broadcastDiscovery;
+    private WifiManager.MulticastLock m_multicastLock;
 
     public interface StateListener
     {
@@ -71,12 +86,77 @@ public class WalkieService extends Service
         void setStateListener(StateListener stateListener, Channel.StateListener channelStateListener)
         {
             stateListener.onInit(m_audioRecorder);
-            m_channel.setStateListener(channelStateListener);
+            m_lock.lock();
+            try
+            {
+                m_channelStateListener = channelStateListener;
+                m_channel.setStateListener(channelStateListener);
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
         }
 
         void setStationName(String stationName)
         {
-            m_channel.setStationName(stationName);
+            for (Channel channel : m_channels.values())
+                channel.setStationName(stationName);
+        }
+
+        void setScanning(boolean scanning)
+        {
+            m_scanner.setScanning(scanning);
+        }
+
+        boolean isScanning()
+        {
+            return m_scanner.isScanning();
+        }
+
+        String [] getTalkgroups()
+        {
+            return m_channels.keySet().toArray(new String[m_channels.size()]);
+        }
+
+        String getTalkgroup()
+        {
+            m_lock.lock();
+            try
+            {
+                return m_channel.getName();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+        }
+
+        boolean setTalkgroup(String name)
+        {
+            final Channel channel = m_channels.get(name);
+            if (channel == null)
+                return false;
+
+            m_lock.lock();
+            try
+            {
+                if (channel != m_channel)
+                {
+                    Log.i(LOG_TAG, "talkgroup " + m_channel.getName() + " -> " + name);
+                    m_channel.setStateListener(null);
+                    m_channel = channel;
+                    if (m_channelStateListener != null)
+                        channel.setStateListener(m_channelStateListener);
+                    m_audioRecorder.setSessionManager(channel.getSessionManager());
+                    m_scanner.setHomeChannel(channel);
+                }
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            return true;
         }
     }
 
@@ -158,8 +238,9 @@ public class WalkieService extends Service
                 final String[] ss = nsdServiceInfo.getServiceName().split( SERVICE_NAME_SEPARATOR );
                 final String channelName = new String( Base64.decode( ss[0], 0 ) );
                 Log.i( LOG_TAG, "onServiceFound: " + channelName + ": " + nsdServiceInfo );
-                if (channelName.compareTo( SERVICE_NAME ) == 0)
-                    m_channel.onServiceFound( nsdServiceInfo );
+                final Channel channel = m_channels.get( channelName );
+                if (channel != null)
+                    channel.onServiceFound( nsdServiceInfo );
             }
             catch (final IllegalArgumentException ex)
             {
@@ -177,8 +258,9 @@ public class WalkieService extends Service
                 final String[] ss = nsdServiceInfo.getServiceName().split( SERVICE_NAME_SEPARATOR );
                 final String channelName = new String( Base64.decode( ss[0], 0 ) );
                 Log.i( LOG_TAG, "service lost: " + channelName + " [" + nsdServiceInfo + "]" );
-                if (channelName.compareTo( SERVICE_NAME ) == 0)
-                    m_channel.onServiceLost( nsdServiceInfo );
+                final Channel channel = m_channels.get( channelName );
+                if (channel != null)
+                    channel.onServiceLost( nsdServiceInfo );
             }
             catch (final IllegalArgumentException ex)
             {
@@ -188,6 +270,23 @@ public class WalkieService extends Service
         }
     }
 
+    private class BeaconListener implements BroadcastDiscovery.Listener
+    {
+        public void onPeerFound( String channelName, String deviceID, InetSocketAddress addr )
+        {
+            final Channel channel = m_channels.get( channelName );
+            if (channel != null)
+                channel.onBeaconFound( deviceID, addr );
+        }
+
+        public void onPeerLost( String channelName, String deviceID )
+        {
+            final Channel channel = m_channels.get( channelName );
+            if (channel != null)
+                channel.onBeaconLost( deviceID );
+        }
+    }
+
     private static String getDeviceID( ContentResolver contentResolver )
     {
         long deviceID = 0;
@@ -226,6 +325,7 @@ public class WalkieService extends Service
     {
         m_binder = new BinderImpl();
         m_lock = new ReentrantLock();
+        m_channels = new LinkedHashMap<String, Channel>();
     }
 
     public void onCreate()
@@ -244,7 +344,16 @@ public class WalkieService extends Service
     public boolean onUnbind( Intent intent )
     {
         Log.d( LOG_TAG, "onUnbind" );
-        m_channel.setStateListener( null );
+        m_lock.lock();
+        try
+        {
+            m_channelStateListener = null;
+            m_channel.setStateListener( null );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
         return false;
     }
 
@@ -256,8 +365,11 @@ public class WalkieService extends Service
         {
             final String deviceID = getDeviceID( getContentResolver() );
 
-            final SessionManager sessionManager = new SessionManager();
-            m_audioRecorder = AudioRecorder.create(sessionManager);
+            /* Audio recorder starts with the first talkgroup */
+            final SessionManager [] sessionManagers = new SessionManager[Config.TALKGROUPS.length];
+            for (int idx=0; idx<sessionManagers.length; idx++)
+                sessionManagers[idx] = new SessionManager();
+            m_audioRecorder = AudioRecorder.create(sessionManagers[0]);
 
             if (m_audioRecorder != null)
             {
@@ -283,18 +395,60 @@ public class WalkieService extends Service
                     m_colliderThread.setPriority(colliderConfig.threadPriority);
 
                     final TimerQueue timerQueue = new TimerQueue(m_collider.getThreadPool());
-
-                    m_channel = new Channel(
-                            deviceID,
-                            stationName,
-                            m_audioRecorder.getAudioFormat(),
-                            m_collider,
-                            m_nsdManager,
-                            SERVICE_TYPE,
-                            SERVICE_NAME,
-                            sessionManager,
-                            timerQueue,
-                            Config.PING_INTERVAL);
+                    m_timingWheel = new TimingWheel(timerQueue, Config.TIMER_TICK, Config.TIMER_WHEEL_SIZE);
+                    final PeerCache peerCache = new PeerCache(getSharedPreferences(PEER_CACHE_NAME, MODE_PRIVATE));
+
+                    if (Config.BROADCAST_DISCOVERY)
+                    {
+                        m_broadcastDiscovery = BroadcastDiscovery.create( deviceID, new BeaconListener() );
+                        if (m_broadcastDiscovery != null)
+                        {
+                            /* Some devices filter out broadcast packets without the lock */
+                            final WifiManager wifiManager = (WifiManager) getSystemService( WIFI_SERVICE );
+                            m_multicastLock = wifiManager.createMulticastLock( LOG_TAG );
+                            m_multicastLock.acquire();
+                        }
+                    }
+
+                    /* Talkgroups with the same station share one connection */
+                    final LinkManager linkManager = new LinkManager(m_channels);
+                    m_scanner = new Scanner(Config.SCANNER);
+
+                    for (int idx=0; idx<Config.TALKGROUPS.length; idx++)
+                    {
+                        final String talkgroup = Config.TALKGROUPS[idx];
+                        final Channel channel = new Channel(
+                                deviceID,
+                                stationName,
+                                m_audioRecorder.getAudioFormat(),
+                                m_collider,
+                                m_nsdManager,
+                                SERVICE_TYPE,
+                                talkgroup,
+                                sessionManagers[idx],
+                                timerQueue,
+                                m_timingWheel,
+                                Config.PING_INTERVAL,
+                                peerCache,
+                                m_broadcastDiscovery,
+                                linkManager,
+                                m_scanner);
+                        m_channels.put(talkgroup, channel);
+                        m_scanner.addChannel(channel);
+                    }
+
+                    m_lock.lock();
+                    try
+                    {
+                        m_channel = m_channels.get(Config.TALKGROUPS[0]);
+                    }
+                    finally
+                    {
+                        m_lock.unlock();
+                    }
+
+                    if (m_broadcastDiscovery != null)
+                        m_broadcastDiscovery.start();
 
                     m_discoveryListener = new DiscoveryListener();
                     m_nsdManager.discoverServices( SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, m_discoveryListener );
@@ -345,16 +499,31 @@ public class WalkieService extends Service
             m_lock.unlock();
         }
 
-        /* Channel has 2 possible operations to stop:
+        if (m_broadcastDiscovery != null)
+        {
+            m_broadcastDiscovery.stop();
+            m_broadcastDiscovery = null;
+        }
+
+        if (m_multicastLock != null)
+        {
+            m_multicastLock.release();
+            m_multicastLock = null;
+        }
+
+        /* Each channel has 2 possible operations to stop:
          *    - service registration
          *    - service resolve
          */
-        final CountDownLatch stopLatch = new CountDownLatch( 2 );
-        m_channel.stop( stopLatch );
+        final CountDownLatch stopLatch = new CountDownLatch( 2 * m_channels.size() );
+        for (Channel channel : m_channels.values())
+            channel.stop( stopLatch );
 
         try
         {
             stopLatch.await();
+            if (m_timingWheel != null)
+                m_timingWheel.stop();
         }
         catch (final InterruptedException ex)
         {
@@ -377,6 +546,12 @@ public class WalkieService extends Service
             }
         }
 
+        for (Channel channel : m_channels.values())
+            channel.stopEventLoop();
+
+        /* All sessions, players and the recorder are stopped */
+        LeakTracker.reportAll("onDestroy: ");
+
         /* Restore volume */
         final int audioStream = MainActivity.AUDIO_STREAM;
         final AudioManager audioManager = (AudioManager) getSystemService( AUDIO_SERVICE );